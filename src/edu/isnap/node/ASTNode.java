@@ -1,17 +1,17 @@
 package edu.isnap.node;
 
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
-import org.apache.commons.lang.builder.EqualsBuilder;
-import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -19,6 +19,7 @@ import org.json.JSONObject;
 import edu.isnap.node.PrettyPrint.Params;
 import edu.isnap.rating.RatingConfig;
 import edu.isnap.util.Diff;
+import edu.isnap.util.map.CountMap;
 
 public class ASTNode implements INode {
 
@@ -64,6 +65,24 @@ public class ASTNode implements INode {
 
 	private final List<String> childRelations = new ArrayList<>();
 
+	// The table in which this node's type, value and child relations were interned, if any, and
+	// the ids of its type and value in that table
+	private final SymbolTable symbols;
+	private final int typeID, valueID;
+
+	// Cached results of structuralHash() and treeSize(), which are cleared whenever this subtree
+	// is modified
+	private int structuralHash, size;
+	private boolean hasStructuralHash;
+	// The cached result of typeCounts(), which is only kept while the hash is cached
+	private CountMap<String> typeCounts;
+
+	// Cached positional metadata: this node's index in its parent's children, which is only valid
+	// while the parent's hasChildIndices is true, and this node's depth, or -1 if not cached
+	private int cachedIndex = -1;
+	private boolean hasChildIndices = true;
+	private int cachedDepth = -1;
+
 	public static class SourceLocation implements Comparable<SourceLocation>{
 		// TODO: Update this class to parse your new start and end locations
 		public final int line, col;
@@ -142,10 +161,63 @@ public class ASTNode implements INode {
 		return unmodifiableChildren;
 	}
 
+	/**
+	 * Returns the relation of the child at the given index to this node, e.g. its key in the
+	 * "children" of this node's JSON.
+	 */
+	public String childRelation(int index) {
+		return childRelations.get(index);
+	}
+
+	/**
+	 * Returns the SymbolTable in which this node's type and value were interned, or null if they
+	 * were not.
+	 */
+	public SymbolTable symbols() {
+		return symbols;
+	}
+
+	/**
+	 * Returns the id of this node's type in its {@link ASTNode#symbols()} table, or
+	 * {@link SymbolTable#NONE} if it has no table. Nodes that share a table have the same type if
+	 * and only if they have the same type id.
+	 */
+	public int typeID() {
+		return typeID;
+	}
+
+	/**
+	 * Returns the id of this node's value in its {@link ASTNode#symbols()} table, or
+	 * {@link SymbolTable#NONE} if it has no table or no value.
+	 */
+	public int valueID() {
+		return valueID;
+	}
+
 	public ASTNode(String type, String value, String id) {
+		this(type, value, id, null);
+	}
+
+	/**
+	 * Creates a node whose type, value and child relations are interned in the given SymbolTable,
+	 * if it is not null, so that nodes sharing the table share strings and can be compared by id.
+	 * Note: since {@link ASTNode#type} and {@link ASTNode#value} are public, they should be changed
+	 * using {@link ASTNode#replaceWith(ASTNode)} rather than directly, or their ids will be out of
+	 * date.
+	 */
+	public ASTNode(String type, String value, String id, SymbolTable symbols) {
 		if (type == null) throw new IllegalArgumentException("'type' cannot be null");
-		this.type = type;
-		this.value = value;
+		this.symbols = symbols;
+		if (symbols == null) {
+			this.type = type;
+			this.value = value;
+			typeID = valueID = SymbolTable.NONE;
+		} else {
+			typeID = symbols.id(type);
+			valueID = symbols.id(value);
+			this.type = symbols.symbol(typeID);
+			this.value = symbols.symbol(valueID);
+		}
 		this.id = id;
 	}
 
@@ -165,9 +237,20 @@ public class ASTNode implements INode {
 
 	public boolean addChild(int index, String relation, ASTNode child) {
 		if (childRelations.contains(relation)) return false;
+		if (symbols != null) relation = symbols.intern(relation);
 		children.add(index, child);
 		childRelations.add(index, relation);
-		if (child != null) child.parent = this;
+		if (child != null) {
+			child.parent = this;
+			child.invalidateDepth();
+		}
+		// Appending a child does not shift the indices of its siblings
+		if (index == children.size() - 1) {
+			if (child != null) child.cachedIndex = index;
+		} else {
+			hasChildIndices = false;
+		}
+		invalidateStructuralHash();
 		return true;
 	}
 
@@ -175,14 +258,141 @@ public class ASTNode implements INode {
 		ASTNode child = children.remove(index);
 		childRelations.remove(index);
 		child.parent = null;
+		child.invalidateDepth();
+		if (index != children.size()) hasChildIndices = false;
+		invalidateStructuralHash();
 	}
 
 	public void clearChildren() {
 		children.forEach(c -> {
-			if (c.parent == this) c.parent = null;
+			if (c.parent == this) {
+				c.parent = null;
+				c.invalidateDepth();
+			}
 		});
 		children.clear();
 		childRelations.clear();
+		hasChildIndices = true;
+		invalidateStructuralHash();
+	}
+
+	private void invalidateDepth() {
+		// A cached depth implies the depths of all ancestors are cached, so we can stop at the
+		// first descendant that has no cached depth
+		TreeWalker.walk(this, (ASTNode node, int index, int depth) -> {
+			if (node == null || node.cachedDepth < 0) return false;
+			node.cachedDepth = -1;
+			return true;
+		});
+	}
+
+	/**
+	 * Returns the index of this node in its parent's children, or -1 if it has no parent. Indices
+	 * are cached, and are recomputed for all siblings at once after a child is inserted or
+	 * removed anywhere other than at the end of the parent's children.
+	 */
+	@Override
+	public int index() {
+		if (parent == null) return -1;
+		if (!parent.hasChildIndices) {
+			List<ASTNode> siblings = parent.children;
+			for (int i = 0; i < siblings.size(); i++) {
+				ASTNode sibling = siblings.get(i);
+				if (sibling != null && sibling.parent == parent) sibling.cachedIndex = i;
+			}
+			parent.hasChildIndices = true;
+		}
+		return cachedIndex;
+	}
+
+	private void invalidateStructuralHash() {
+		// A cached hash implies the hashes of all descendants are cached, so we can stop at the
+		// first ancestor that has no cached hash
+		for (ASTNode node = this; node != null && node.hasStructuralHash; node = node.parent) {
+			node.hasStructuralHash = false;
+			node.typeCounts = null;
+		}
+	}
+
+	/**
+	 * Returns a hash of this subtree computed from the type and value of this node and the
+	 * structural hashes of its children, matching {@link ASTNode#hashCode()}. The hash is cached,
+	 * and the cache is cleared when children are added to or removed from this subtree, so
+	 * identical subtrees can be detected without walking them.
+	 * Note: since {@link ASTNode#type} and {@link ASTNode#value} are public, they should be changed
+	 * using {@link ASTNode#replaceWith(ASTNode)} rather than directly, or the cached hash may be
+	 * out of date.
+	 */
+	public int structuralHash() {
+		if (!hasStructuralHash) TreeWalker.walk(this, HASH_VISITOR);
+		return structuralHash;
+	}
+
+	// Computes hashes bottom-up, skipping subtrees whose hashes are still cached
+	private final static TreeWalker.Visitor<ASTNode> HASH_VISITOR =
+			new TreeWalker.Visitor<ASTNode>() {
+		@Override
+		public boolean enter(ASTNode node, int index, int depth) {
+			return node != null && !node.hasStructuralHash;
+		}
+
+		@Override
+		public void exit(ASTNode node, int index, int depth) {
+			if (node != null && !node.hasStructuralHash) node.computeStructuralHash();
+		}
+	};
+
+	// Computes this node's hash and size, assuming those of its children are already cached
+	private void computeStructuralHash() {
+		// Computed the same way as HashCodeBuilder with a List of children
+		int childrenHash = 1;
+		// The size is cached along with the hash, since it needs the same walk
+		int size = 1;
+		for (ASTNode child : children) {
+			if (child == null) {
+				childrenHash = 31 * childrenHash;
+				size++;
+			} else {
+				childrenHash = 31 * childrenHash + child.structuralHash;
+				size += child.size;
+			}
+		}
+		int hash = 9;
+		hash = hash * 15 + type.hashCode();
+		hash = hash * 15 + (value == null ? 0 : value.hashCode());
+		hash = hash * 15 + childrenHash;
+		structuralHash = hash;
+		this.size = size;
+		hasStructuralHash = true;
+	}
+
+	/**
+	 * Returns the number of nodes in this subtree, counting null children as placeholders. Like
+	 * {@link ASTNode#structuralHash()}, this is cached until the subtree is modified.
+	 */
+	@Override
+	public int treeSize() {
+		structuralHash();
+		return size;
+	}
+
+	/**
+	 * Returns the number of nodes of each type in this subtree, counting null children with a
+	 * null type. Like {@link ASTNode#treeSize()}, this is cached until the subtree is modified,
+	 * so the result must not be modified.
+	 */
+	CountMap<String> typeCounts() {
+		// Counts are cleared along with the hash, so they are only cached while it is
+		structuralHash();
+		if (typeCounts == null) {
+			CountMap<String> counts = new CountMap<>();
+			TreeWalker.walk(this, (ASTNode node, int index, int depth) -> {
+				counts.increment(node == null ? null : node.type);
+				return true;
+			});
+			typeCounts = counts;
+		}
+		return typeCounts;
 	}
 
 	public String prettyPrint(boolean showValues, RatingConfig config) {
@@ -206,40 +416,43 @@ public class ASTNode implements INode {
 	}
 
 	public static ASTNode parse(String jsonSource) throws JSONException {
-		JSONObject object;
+		return parse(jsonSource, null);
+	}
+
+	/**
+	 * Parses the given JSON AST, interning its types, values and child relations in the given
+	 * SymbolTable, if it is not null.
+	 */
+	public static ASTNode parse(String jsonSource, SymbolTable symbols) throws JSONException {
 		try {
-			object = new JSONObject(jsonSource);
+			// Parsed directly, rather than through a JSONObject, since this is called for every AST
+			// in a dataset
+			return JSONASTParser.parse(jsonSource.toCharArray(), symbols);
 		} catch (Exception e) {
 			System.out.println("Error parsing JSON:");
 			System.out.println(jsonSource);
 			throw e;
 		}
-		return parse(object);
 	}
 
 	public static ASTNode parse(JSONObject object) {
-		String type = object.getString("type");
-		String value = object.has("value") ? object.getString("value") : null;
-		String id = object.has("id") ? object.getString("id") : null;
-
-		ASTNode node = new ASTNode(type, value, id);
-
-		if (object.has("sourceStart")) {
-			try {
-				JSONArray startArray = object.getJSONArray("sourceStart");
-				node.startSourceLocation = new SourceLocation(startArray.getInt(0), startArray.getInt(1));
-			} catch (JSONException e) { e.printStackTrace(); }
-		}
-
-		if (object.has("sourceEnd")) {
-			try {
-				JSONArray endArray = object.getJSONArray("sourceEnd");
-				node.endSourceLocation = new SourceLocation(endArray.getInt(0), endArray.getInt(1));
-			} catch (JSONException e) { e.printStackTrace(); }
-		}
-
-		JSONObject children = object.optJSONObject("children");
-		if (children != null) {
+		return parse(object, null);
+	}
+
+	public static ASTNode parse(JSONObject object, SymbolTable symbols) {
+		ASTNode root = parseShallow(object, symbols);
+		// Children are parsed using an explicit stack, rather than recursively, so that deep ASTs
+		// cannot overflow the call stack
+		List<JSONObject> objects = new ArrayList<>();
+		List<ASTNode> nodes = new ArrayList<>();
+		objects.add(object);
+		nodes.add(root);
+		while (!nodes.isEmpty()) {
+			object = objects.remove(objects.size() - 1);
+			ASTNode node = nodes.remove(nodes.size() - 1);
+
+			JSONObject children = object.optJSONObject("children");
+			if (children == null) continue;
 			JSONArray childrenOrder = object.optJSONArray("childrenOrder");
 
 			if (childrenOrder == null) {
@@ -255,37 +468,112 @@ public class ASTNode implements INode {
 			for (int i = 0; i < childrenOrder.length(); i++) {
 				String relation = childrenOrder.getString(i);
 				if (children.isNull(relation)) {
-					node.addChild(relation, new ASTNode(EMPTY_TYPE, null, null));
+					node.addChild(relation, new ASTNode(EMPTY_TYPE, null, null, symbols));
 					continue;
 				}
 
-				ASTNode child = parse(children.getJSONObject(relation));
+				JSONObject childObject = children.getJSONObject(relation);
+				ASTNode child = parseShallow(childObject, symbols);
 				node.addChild(relation, child);
+				objects.add(childObject);
+				nodes.add(child);
 			}
 		}
 
+		return root;
+	}
+
+	// Parses the given node without its children
+	private static ASTNode parseShallow(JSONObject object, SymbolTable symbols) {
+		String type = object.getString("type");
+		String value = object.has("value") ? object.getString("value") : null;
+		String id = object.has("id") ? object.getString("id") : null;
+
+		ASTNode node = new ASTNode(type, value, id, symbols);
+
+		if (object.has("sourceStart")) {
+			try {
+				JSONArray startArray = object.getJSONArray("sourceStart");
+				node.startSourceLocation = new SourceLocation(startArray.getInt(0), startArray.getInt(1));
+			} catch (JSONException e) { e.printStackTrace(); }
+		}
+
+		if (object.has("sourceEnd")) {
+			try {
+				JSONArray endArray = object.getJSONArray("sourceEnd");
+				node.endSourceLocation = new SourceLocation(endArray.getInt(0), endArray.getInt(1));
+			} catch (JSONException e) { e.printStackTrace(); }
+		}
+
 		return node;
 	}
 
 	public JSONObject toJSON() {
-		JSONObject object = new OJSONObject();
-		object.put("type", type);
-		if (value != null) object.put("value", value);
-		if (id != null) object.put("id", id);
-		if (children.size() > 0) {
+		JSONObject root = shallowJSON();
+		// Built using an explicit stack, rather than recursively, so that deep ASTs cannot
+		// overflow the call stack
+		List<ASTNode> nodes = new ArrayList<>();
+		List<JSONObject> objects = new ArrayList<>();
+		nodes.add(this);
+		objects.add(root);
+		while (!nodes.isEmpty()) {
+			ASTNode node = nodes.remove(nodes.size() - 1);
+			JSONObject object = objects.remove(objects.size() - 1);
+			if (node.children.size() == 0) continue;
+
 			JSONObject children = new OJSONObject();
 			JSONArray childrenOrder = new JSONArray();
-			for (int i = 0; i < this.children.size(); i++) {
-				String relation = childRelations.get(i);
-				children.put(relation, this.children.get(i).toJSON());
+			for (int i = 0; i < node.children.size(); i++) {
+				String relation = node.childRelations.get(i);
+				ASTNode child = node.children.get(i);
+				if (child == null) {
+					children.put(relation, JSONObject.NULL);
+				} else {
+					JSONObject childObject = child.shallowJSON();
+					children.put(relation, childObject);
+					nodes.add(child);
+					objects.add(childObject);
+				}
 				childrenOrder.put(relation);
 			}
 			object.put("children", children);
 			object.put("childrenOrder", childrenOrder);
 		}
+		return root;
+	}
+
+	// Returns a JSONObject with this node's type, value and id, but not its children
+	private JSONObject shallowJSON() {
+		JSONObject object = new OJSONObject();
+		object.put("type", type);
+		if (value != null) object.put("value", value);
+		if (id != null) object.put("id", id);
 		return object;
 	}
 
+	/**
+	 * Writes this node as JSON to the given Appendable, producing the same text as
+	 * toJSON().toString(indentFactor) without building the intermediate JSONObjects.
+	 */
+	public void writeJSON(Appendable out, int indentFactor) throws IOException {
+		new JSONASTWriter(out, indentFactor).write(this);
+	}
+
+	/**
+	 * Returns the same text as toJSON().toString(), without building the intermediate
+	 * JSONObjects.
+	 */
+	public String toJSONString() {
+		StringBuilder sb = new StringBuilder();
+		try {
+			writeJSON(sb, 0);
+		} catch (IOException e) {
+			// Cannot happen, since we are writing to a StringBuilder
+			throw new RuntimeException(e);
+		}
+		return sb.toString();
+	}
+
 	// We want the fields to come out in the order we add them (with extendable children last)
 	// for readability
 	private static class OJSONObject extends JSONObject {
@@ -301,19 +589,32 @@ public class ASTNode implements INode {
 	}
 
 	public void autoID(String prefix) {
-		autoID(prefix, new AtomicInteger(0));
-	}
-
-	private void autoID(String prefix, AtomicInteger id) {
-		if (this.id == null) this.id = prefix + id.getAndIncrement();
-		for (ASTNode child : children) {
-			child.autoID(prefix, id);
-		}
+		AtomicInteger id = new AtomicInteger(0);
+		TreeWalker.preOrder(this, node -> {
+			if (node.id == null) node.id = prefix + id.getAndIncrement();
+		});
 	}
 
+	/**
+	 * Returns the number of ancestors of this node. Depths are cached, and the cache is cleared
+	 * for a subtree when it is added to or removed from a parent.
+	 */
 	public int depth() {
-		if (parent == null) return 0;
-		return parent.depth() + 1;
+		if (cachedDepth >= 0) return cachedDepth;
+		// Climb to the nearest ancestor with a cached depth (or the root), then cache the depths of
+		// the nodes in between, without recursing
+		ASTNode ancestor = this;
+		int distance = 0;
+		while (ancestor.cachedDepth < 0 && ancestor.parent != null) {
+			ancestor = ancestor.parent;
+			distance++;
+		}
+		if (ancestor.cachedDepth < 0) ancestor.cachedDepth = 0;
+		int depth = ancestor.cachedDepth + distance;
+		for (ASTNode node = this; node != ancestor; node = node.parent) {
+			node.cachedDepth = depth--;
+		}
+		return cachedDepth;
 	}
 
 	public String parentType() {
@@ -342,27 +643,42 @@ public class ASTNode implements INode {
 
 	public ASTNode copy() {
 		ASTNode copy = shallowCopy();
-		for (int i = 0; i < children.size(); i++) {
-			ASTNode child = children.get(i);
-			copy.addChild(childRelations.get(i), child == null ? null : child.copy());
+		// Copied using an explicit stack of (original, copy) pairs, rather than recursively, so
+		// that deep ASTs cannot overflow the call stack
+		List<ASTNode> originals = new ArrayList<>(), copies = new ArrayList<>();
+		originals.add(this);
+		copies.add(copy);
+		while (!originals.isEmpty()) {
+			ASTNode original = originals.remove(originals.size() - 1);
+			ASTNode parent = copies.remove(copies.size() - 1);
+			for (int i = 0; i < original.children.size(); i++) {
+				ASTNode child = original.children.get(i);
+				ASTNode childCopy = child == null ? null : child.shallowCopy();
+				if (parent.addChild(original.childRelations.get(i), childCopy) && child != null) {
+					originals.add(child);
+					copies.add(childCopy);
+				}
+			}
 		}
 		return copy;
 	}
 
 	public ASTNode shallowCopy() {
-		ASTNode copy = new ASTNode(type, value, id);
+		ASTNode copy = new ASTNode(type, value, id, symbols);
 		copy.startSourceLocation = this.startSourceLocation;
 		copy.endSourceLocation = this.endSourceLocation;
 		return copy;
 	}
 
 	public void recurse(Consumer<ASTNode> action) {
-		action.accept(this);
-		for (ASTNode child : children) {
-			if (child != null) child.recurse(action);
-		}
+		TreeWalker.preOrder(this, action);
 	}
 
+	/**
+	 * Returns this node's start location, or if it has none, the earliest start of its children.
+	 * To find the locations of every node in an AST, use a {@link SourceLocationResolver}, which
+	 * computes them all in linear time.
+	 */
 	public SourceLocation getSourceLocationStart() {
 		if (startSourceLocation != null) { return startSourceLocation; }
 		SourceLocation min = null;
@@ -372,6 +688,10 @@ public class ASTNode implements INode {
 		return min;
 	}
 
+	/**
+	 * Returns this node's end location, or if it has none, the start of its next sibling that has
+	 * one, or otherwise its parent's end. See {@link SourceLocationResolver} for whole ASTs.
+	 */
 	public SourceLocation getSourceLocationEnd() {
 		if(endSourceLocation != null) { return endSourceLocation; }
 		if (parent == null) return null;
@@ -394,18 +714,43 @@ public class ASTNode implements INode {
 	}
 
 	public boolean equals(ASTNode rhs, boolean compareIDs, boolean compareChildRelations) {
-		if (!shallowEquals(rhs, compareIDs)) return false;
-		if (children.size() != rhs.children.size()) return false;
-		// Compare children manually so we can pass on the compare flags
-		for (int i = 0; i < children.size(); i++) {
-			if (!equals(children.get(i), rhs.children.get(i), compareIDs, compareChildRelations)) {
-				return false;
+		if (rhs == null) return false;
+		if (rhs == this) return true;
+		// Compare pairs of nodes using an explicit stack, rather than recursively, so that deep
+		// ASTs cannot overflow the call stack. Equality is checked for every pair of identical
+		// subtrees that is aligned, so each thread reuses its stack, unless it is already in use.
+		List<ASTNode> stack = equalsStacks.get();
+		if (!stack.isEmpty()) stack = new ArrayList<>();
+		stack.add(this);
+		stack.add(rhs);
+		try {
+			while (!stack.isEmpty()) {
+				ASTNode b = stack.remove(stack.size() - 1), a = stack.remove(stack.size() - 1);
+				if (a == b) continue;
+				if (a == null || b == null) return false;
+				// Subtrees with different structural hashes or sizes cannot be equal, and both
+				// are cached, so most unequal subtrees can be rejected without walking them
+				if (a.structuralHash() != b.structuralHash() || a.size != b.size) return false;
+				if (!a.shallowEquals(b, compareIDs)) return false;
+				if (a.children.size() != b.children.size()) return false;
+				if (compareChildRelations && !a.childRelations.equals(b.childRelations)) {
+					return false;
+				}
+				for (int i = a.children.size() - 1; i >= 0; i--) {
+					stack.add(a.children.get(i));
+					stack.add(b.children.get(i));
+				}
 			}
+			return true;
+		} finally {
+			// Don't hold on to any nodes
+			stack.clear();
 		}
-		if (compareChildRelations && !childRelations.equals(rhs.childRelations)) return false;
-		return true;
 	}
 
+	private final static ThreadLocal<List<ASTNode>> equalsStacks =
+			ThreadLocal.withInitial(ArrayList::new);
+
 	public static boolean equals(ASTNode a, ASTNode b, boolean compareIDs,
 			boolean compareChildRelations) {
 		if (a == null) return b == null;
@@ -414,20 +759,24 @@ public class ASTNode implements INode {
 
 	public boolean shallowEquals(ASTNode rhs, boolean compareIDs) {
 		if (rhs == null) return false;
-		EqualsBuilder builder = new EqualsBuilder();
-		builder.append(type, rhs.type);
-		builder.append(value, rhs.value);
-		if (compareIDs) builder.append(id, rhs.id);
-		return builder.isEquals();
+		// Compared directly, rather than with an EqualsBuilder, since this is called for every
+		// pair of nodes that is aligned
+		if (symbols != null && symbols == rhs.symbols) {
+			// Both nodes were interned in the same table, so we can compare ids
+			if (typeID != rhs.typeID || valueID != rhs.valueID) return false;
+		} else if (!Objects.equals(type, rhs.type) || !Objects.equals(value, rhs.value)) {
+			return false;
+		}
+		return !compareIDs || Objects.equals(id, rhs.id);
 	}
 
+	/**
+	 * Returns the cached {@link ASTNode#structuralHash()} of this subtree, which is the same as
+	 * building a hash from this node's type, value and children with a HashCodeBuilder.
+	 */
 	@Override
 	public int hashCode() {
-		HashCodeBuilder builder = new HashCodeBuilder(9, 15);
-		builder.append(type);
-		builder.append(value);
-		builder.append(children);
-		return builder.toHashCode();
+		return structuralHash();
 	}
 
 	@Override
@@ -440,7 +789,7 @@ public class ASTNode implements INode {
 	}
 
 	public ASTSnapshot toSnapshot(boolean isCorrect, String source) {
-		ASTSnapshot snapshot = new ASTSnapshot(type, value, id, isCorrect, source);
+		ASTSnapshot snapshot = new ASTSnapshot(type, value, id, symbols, isCorrect, source);
 		for (int i = 0; i < children.size(); i++) {
 			snapshot.addChild(childRelations.get(i), children.get(i));
 		}
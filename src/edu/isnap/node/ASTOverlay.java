@@ -0,0 +1,137 @@
+package edu.isnap.node;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import edu.isnap.util.map.IdentityHashSet;
+
+/**
+ * A read-only view of an ASTNode that presents some of its nodes with different values and hides
+ * some of its subtrees, without copying or modifying the underlying AST. This is useful when most
+ * nodes of an AST are left unchanged, e.g. when normalizing node values before comparing ASTs.
+ *
+ * Algorithms that need a real ASTNode (e.g. a {@link TreeAligner}) can get one using
+ * {@link ASTOverlay#toAST()}, which only copies the AST if the overlay changes something.
+ */
+public class ASTOverlay {
+
+	public final ASTNode base;
+
+	private final Map<ASTNode, String> values = new IdentityHashMap<>();
+	private final IdentityHashSet<ASTNode> hidden = new IdentityHashSet<>();
+
+	public ASTOverlay(ASTNode base) {
+		this.base = base;
+	}
+
+	/**
+	 * Returns the value of the given node of the base AST, as presented by this overlay.
+	 */
+	public String value(ASTNode node) {
+		String value = values.get(node);
+		if (value == null && !values.containsKey(node)) return node.value;
+		return value;
+	}
+
+	/**
+	 * Presents the given node of the base AST with the given value, rather than its own.
+	 */
+	public void setValue(ASTNode node, String value) {
+		if (Objects.equals(node.value, value)) {
+			values.remove(node);
+		} else {
+			values.put(node, value);
+		}
+	}
+
+	/**
+	 * Hides the subtree rooted at the given node of the base AST, as though it had been removed
+	 * from its parent.
+	 */
+	public void hide(ASTNode node) {
+		if (node == base) throw new IllegalArgumentException("Cannot hide the root of an overlay");
+		hidden.add(node);
+	}
+
+	/**
+	 * Returns true if the given node itself was hidden. Note: this does not check whether one of
+	 * its ancestors was hidden.
+	 */
+	public boolean isHidden(ASTNode node) {
+		return hidden.contains(node);
+	}
+
+	/**
+	 * Returns the number of children of the given node of the base AST that are not hidden.
+	 */
+	public int childCount(ASTNode node) {
+		int count = 0;
+		for (ASTNode child : node.children()) {
+			if (!hidden.contains(child)) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns true if this overlay presents the base AST without any changes.
+	 */
+	public boolean isUnchanged() {
+		return values.isEmpty() && hidden.isEmpty();
+	}
+
+	/**
+	 * Calls the given action on each node of the base AST that is not hidden, in pre-order.
+	 */
+	public void recurse(Consumer<ASTNode> action) {
+		TreeWalker.walk(base, (ASTNode node, int index, int depth) -> {
+			if (node == null || hidden.contains(node)) return false;
+			action.accept(node);
+			return true;
+		});
+	}
+
+	/**
+	 * Returns an ASTNode with the values and children presented by this overlay. If the overlay
+	 * changes nothing, this is the base AST itself, which should therefore not be modified.
+	 */
+	public ASTNode toAST() {
+		return isUnchanged() ? base : copy();
+	}
+
+	/**
+	 * Returns a new copy of the AST presented by this overlay, which can be safely modified.
+	 */
+	public ASTNode copy() {
+		ASTNode copy = shallowCopy(base);
+		// Copied using an explicit stack of (original, copy) pairs, like ASTNode.copy()
+		List<ASTNode> originals = new ArrayList<>(), copies = new ArrayList<>();
+		originals.add(base);
+		copies.add(copy);
+		while (!originals.isEmpty()) {
+			ASTNode original = originals.remove(originals.size() - 1);
+			ASTNode parent = copies.remove(copies.size() - 1);
+			List<ASTNode> children = original.children();
+			for (int i = 0; i < children.size(); i++) {
+				ASTNode child = children.get(i);
+				if (child != null && hidden.contains(child)) continue;
+				ASTNode childCopy = child == null ? null : shallowCopy(child);
+				if (parent.addChild(original.childRelation(i), childCopy) && child != null) {
+					originals.add(child);
+					copies.add(childCopy);
+				}
+			}
+		}
+		return copy;
+	}
+
+	private ASTNode shallowCopy(ASTNode node) {
+		ASTNode copy = new ASTNode(node.type, value(node), node.id, node.symbols());
+		copy.startSourceLocation = node.startSourceLocation;
+		copy.endSourceLocation = node.endSourceLocation;
+		return copy;
+	}
+}
@@ -16,13 +16,26 @@ public class ASTSnapshot extends ASTNode {
 	public final String source;
 
 	public ASTSnapshot(String type, String value, String id, boolean isCorrect, String sourceCode) {
-		super(type, value, id);
+		this(type, value, id, null, isCorrect, sourceCode);
+	}
+
+	public ASTSnapshot(String type, String value, String id, SymbolTable symbols,
+			boolean isCorrect, String sourceCode) {
+		super(type, value, id, symbols);
 		this.isCorrect = isCorrect;
 		this.source = sourceCode;
 	}
 
 	public static ASTSnapshot parse(String jsonSource) {
-		return parse(new JSONObject(jsonSource));
+		return parse(jsonSource, null);
+	}
+
+	/**
+	 * Parses the given JSON snapshot, interning its types, values and child relations in the
+	 * given SymbolTable, if it is not null.
+	 */
+	public static ASTSnapshot parse(String jsonSource, SymbolTable symbols) {
+		return JSONASTParser.parseSnapshot(jsonSource.toCharArray(), symbols);
 	}
 
 	public static ASTSnapshot parse(JSONObject json) {
@@ -30,10 +43,14 @@ public class ASTSnapshot extends ASTNode {
 	}
 
 	public static ASTSnapshot parse(JSONObject json, String sourceOverride) {
+		return parse(json, sourceOverride, null);
+	}
+
+	public static ASTSnapshot parse(JSONObject json, String sourceOverride, SymbolTable symbols) {
 		// Older versions used "correct"
 		boolean isCorrect = json.optBoolean("isCorrect") || json.optBoolean("correct");
 		String source = sourceOverride;
-		ASTNode node = ASTNode.parse(json);
+		ASTNode node = ASTNode.parse(json, symbols);
 		return node.toSnapshot(isCorrect, source);
 	}
 
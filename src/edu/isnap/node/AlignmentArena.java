@@ -0,0 +1,84 @@
+package edu.isnap.node;
+
+import java.util.Arrays;
+
+/**
+ * Reusable working memory for {@link CodeAlignment}, so that aligning two trees does not allocate
+ * new matrices and result objects for every pair of subtrees. The arena holds two growable int
+ * stacks, which grow until they fit the largest alignment seen so far:
+ * <ul>
+ * <li>scratch: the scores and DP rows of the child matrices currently being aligned, which are
+ * allocated and released in LIFO order as the alignment recurses</li>
+ * <li>records: the result of aligning each pair of subtrees, which refer to the records of their
+ * matched child pairs by relative offsets, so that blocks of records can be moved</li>
+ * </ul>
+ * By default, CodeAlignment uses the arena of the current thread (see
+ * {@link AlignmentArena#forCurrentThread()}), but an aligner can also be given its own arena.
+ * Thread arenas live as long as their threads, including the pool threads of parallel aligners,
+ * so when an outermost alignment returns, any stack larger than {@link #RETAINED_SIZE} is shrunk
+ * back to it (see {@link #trim()}). One very large alignment therefore does not pin its peak
+ * memory on every thread it used, and alignments that fit are still allocation-free.
+ * Note: an arena must only be used by one thread at a time.
+ */
+public class AlignmentArena {
+
+	private final static int INITIAL_SIZE = 1024;
+	/** The most ints each stack keeps when the arena is not in use (1MB per stack). */
+	public final static int RETAINED_SIZE = 1 << 18;
+
+	private final static ThreadLocal<AlignmentArena> threadArenas =
+			ThreadLocal.withInitial(AlignmentArena::new);
+
+	// These arrays may be replaced when the arena grows, so callers must re-read them after any
+	// allocation, rather than holding onto them
+	int[] scratch = new int[INITIAL_SIZE];
+	int scratchTop;
+	int[] records = new int[INITIAL_SIZE];
+	int recordsTop;
+
+	/**
+	 * Returns the arena of the current thread, which is kept for the life of the thread and shared
+	 * by all aligners that do not have their own arena.
+	 */
+	public static AlignmentArena forCurrentThread() {
+		return threadArenas.get();
+	}
+
+	/** Returns the number of ints currently held by this arena's stacks. */
+	public int capacity() {
+		return scratch.length + records.length;
+	}
+
+	/**
+	 * Shrinks each stack that has grown past {@link #RETAINED_SIZE} back to that size, if the
+	 * arena is not in use, i.e. both stacks are empty. Called whenever an outermost alignment
+	 * releases the arena.
+	 */
+	void trim() {
+		if (scratchTop > 0 || recordsTop > 0) return;
+		if (scratch.length > RETAINED_SIZE) scratch = new int[RETAINED_SIZE];
+		if (records.length > RETAINED_SIZE) records = new int[RETAINED_SIZE];
+	}
+
+	/** Allocates the given number of ints on the scratch stack and returns their offset. */
+	int allocateScratch(int size) {
+		int offset = scratchTop;
+		int end = offset + size;
+		if (end > scratch.length) scratch = Arrays.copyOf(scratch, grow(scratch.length, end));
+		scratchTop = end;
+		return offset;
+	}
+
+	/** Allocates the given number of ints on the records stack and returns their offset. */
+	int allocateRecord(int size) {
+		int offset = recordsTop;
+		int end = offset + size;
+		if (end > records.length) records = Arrays.copyOf(records, grow(records.length, end));
+		recordsTop = end;
+		return offset;
+	}
+
+	private static int grow(int length, int minLength) {
+		return Math.max(minLength, length * 2);
+	}
+}
@@ -0,0 +1,202 @@
+package edu.isnap.node;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.isnap.node.CodeAlignment.NodePairs;
+
+/**
+ * A TreeAligner that remembers the alignments computed by another TreeAligner, so that aligning
+ * a pair of ASTs equal to a pair it has already aligned reuses that alignment. This is useful
+ * when the same pair of ASTs is aligned many times, possibly as different copies, e.g. when
+ * rating many hints for the same request against the same tutor hints.
+ *
+ * Alignments are looked up by the {@link ASTNode#structuralHash()} of both ASTs and then
+ * confirmed by the size and a 64-bit fingerprint of each AST, which covers the type, value, id
+ * and child relations of every node (and so the ids and child relations that the structural hash
+ * ignores). The ASTs themselves are not kept, so the cache only holds a few ints for each node of
+ * the ASTs it has aligned, and callers may freely modify the ASTs after aligning them. A reused
+ * alignment is translated to the nodes of the given ASTs by their positions in pre-order. Since
+ * nothing is ever evicted, a cache should be scoped to one task, such as a single rating run. It
+ * is not thread-safe.
+ */
+public class AlignmentCache implements TreeAligner {
+
+	private final TreeAligner aligner;
+	private final Map<Long, List<Alignment>> alignments = new HashMap<>();
+	private int hits, misses;
+
+	// An alignment between two ASTs, identified by their fingerprints, stored by the pre-order
+	// positions of their nodes: pairs[i] is the position in the second AST paired with position i
+	// in the first, or -1
+	private static class Alignment {
+		final long fingerprintFrom, fingerprintTo;
+		final int sizeTo;
+		final int[] pairs;
+		final int reward;
+
+		Alignment(long fingerprintFrom, long fingerprintTo, int sizeTo, int[] pairs,
+				int reward) {
+			this.fingerprintFrom = fingerprintFrom;
+			this.fingerprintTo = fingerprintTo;
+			this.sizeTo = sizeTo;
+			this.pairs = pairs;
+			this.reward = reward;
+		}
+
+		boolean matches(List<ASTNode> nodesFrom, long fingerprintFrom, List<ASTNode> nodesTo,
+				long fingerprintTo) {
+			return pairs.length == nodesFrom.size() && sizeTo == nodesTo.size() &&
+					this.fingerprintFrom == fingerprintFrom && this.fingerprintTo == fingerprintTo;
+		}
+	}
+
+	public AlignmentCache(TreeAligner aligner) {
+		this.aligner = aligner;
+	}
+
+	/**
+	 * Returns the number of alignments that were reused.
+	 */
+	public int getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of alignments that had to be computed.
+	 */
+	public int getMisses() {
+		return misses;
+	}
+
+	@Override
+	public NodePairs align(ASTNode a, ASTNode b) {
+		Lookup lookup = new Lookup(a, b);
+		if (lookup.pairs != null) return lookup.pairs;
+		NodePairs pairs = aligner.align(a, b);
+		lookup.store(pairs);
+		return pairs;
+	}
+
+	@Override
+	public NodePairs alignWithBound(ASTNode a, ASTNode b, int threshold) {
+		Lookup lookup = new Lookup(a, b);
+		if (lookup.pairs != null) return lookup.pairs.getReward() > threshold ? lookup.pairs : null;
+		NodePairs pairs = aligner.alignWithBound(a, b, threshold);
+		// Alignments that were stopped early may be incomplete, so only full ones are kept
+		if (pairs != null) lookup.store(pairs);
+		return pairs;
+	}
+
+	/**
+	 * Looks up the alignment of a pair of ASTs, and stores it if it had to be computed. The nodes
+	 * and fingerprints of the ASTs are only computed if they are needed.
+	 */
+	private class Lookup {
+		final ASTNode a, b;
+		final long key;
+		List<ASTNode> nodesA, nodesB;
+		long fingerprintA, fingerprintB;
+		final NodePairs pairs;
+
+		Lookup(ASTNode a, ASTNode b) {
+			this.a = a;
+			this.b = b;
+			key = ((long) a.structuralHash() << 32) | (b.structuralHash() & 0xFFFFFFFFL);
+			pairs = find();
+			if (pairs == null) misses++;
+			else hits++;
+		}
+
+		private void walk() {
+			if (nodesA != null) return;
+			nodesA = preOrder(a);
+			nodesB = preOrder(b);
+			fingerprintA = fingerprint(nodesA);
+			fingerprintB = fingerprint(nodesB);
+		}
+
+		private NodePairs find() {
+			List<Alignment> candidates = alignments.get(key);
+			if (candidates == null) return null;
+			walk();
+			for (Alignment alignment : candidates) {
+				if (!alignment.matches(nodesA, fingerprintA, nodesB, fingerprintB)) continue;
+				NodePairs pairs = new NodePairs();
+				pairs.reward = alignment.reward;
+				for (int i = 0; i < alignment.pairs.length; i++) {
+					int j = alignment.pairs[i];
+					if (j >= 0) pairs.put(nodesA.get(i), nodesB.get(j));
+				}
+				return pairs;
+			}
+			return null;
+		}
+
+		void store(NodePairs pairs) {
+			walk();
+			Map<ASTNode, Integer> positionsB = new IdentityHashMap<>();
+			for (int j = 0; j < nodesB.size(); j++) positionsB.put(nodesB.get(j), j);
+			int[] positions = new int[nodesA.size()];
+			for (int i = 0; i < positions.length; i++) {
+				Integer j = positionsB.get(pairs.getFrom(nodesA.get(i)));
+				positions[i] = j == null ? -1 : j;
+			}
+			alignments.computeIfAbsent(key, k -> new ArrayList<>(1)).add(new Alignment(
+					fingerprintA, fingerprintB, nodesB.size(), positions, pairs.getReward()));
+		}
+	}
+
+	private static List<ASTNode> preOrder(ASTNode root) {
+		List<ASTNode> nodes = new ArrayList<>();
+		TreeWalker.preOrder(root, nodes::add);
+		return nodes;
+	}
+
+	private final static long FNV_OFFSET = 0xcbf29ce484222325L, FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * Returns a 64-bit FNV-1a hash of the given nodes of an AST, in pre-order, which covers the
+	 * type, value and id of each node and the relation of each of its children, and whether each
+	 * child is null, so together with the order of the nodes it determines the whole AST.
+	 */
+	private static long fingerprint(List<ASTNode> nodes) {
+		long hash = FNV_OFFSET;
+		for (ASTNode node : nodes) {
+			hash = mix(hash, node.type);
+			hash = mix(hash, node.value);
+			hash = mix(hash, node.id);
+			List<ASTNode> children = node.children();
+			hash = mix(hash, children.size());
+			for (int i = 0; i < children.size(); i++) {
+				hash = mix(hash, node.childRelation(i));
+				hash = mix(hash, children.get(i) == null ? 0 : 1);
+			}
+		}
+		return hash;
+	}
+
+	private static long mix(long hash, String string) {
+		// Strings are prefixed by their length, so that adjacent strings cannot run together
+		if (string == null) return mix(hash, -1);
+		hash = mix(hash, string.length());
+		for (int i = 0; i < string.length(); i++) hash = (hash ^ string.charAt(i)) * FNV_PRIME;
+		return hash;
+	}
+
+	private static long mix(long hash, int value) {
+		for (int i = 0; i < 4; i++) {
+			hash = (hash ^ (value & 0xFF)) * FNV_PRIME;
+			value >>>= 8;
+		}
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("AlignmentCache: %d hits, %d misses", hits, misses);
+	}
+}
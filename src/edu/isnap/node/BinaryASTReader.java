@@ -0,0 +1,195 @@
+package edu.isnap.node;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.isnap.node.ASTNode.SourceLocation;
+
+/**
+ * Reads values written by a {@link BinaryASTWriter} from a FileChannel, which is memory-mapped
+ * rather than read through a stream. Large files are mapped one window at a time. The types,
+ * values and child relations of ASTs read are interned in the given SymbolTable, if it is not
+ * null.
+ * Closing the reader closes the channel.
+ */
+public class BinaryASTReader implements Closeable {
+
+	private final static long WINDOW_SIZE = 1 << 30;
+
+	private final FileChannel channel;
+	private final SymbolTable symbols;
+	private final long size;
+	private final boolean hasSourceLocations;
+
+	private final List<String> strings = new ArrayList<>();
+	private byte[] stringBytes = new byte[256];
+
+	private MappedByteBuffer buffer;
+	private long windowStart;
+
+	public BinaryASTReader(FileChannel channel, SymbolTable symbols) throws IOException {
+		this.channel = channel;
+		this.symbols = symbols;
+		size = channel.size();
+		map(0);
+
+		byte[] magic = new byte[BinaryASTWriter.MAGIC.length];
+		require(magic.length);
+		buffer.get(magic);
+		if (!Arrays.equals(magic, BinaryASTWriter.MAGIC)) {
+			throw new IOException("Not a binary AST file");
+		}
+		int version = readVarInt();
+		if (version != BinaryASTWriter.VERSION) {
+			throw new IOException("Unsupported binary AST version: " + version);
+		}
+		hasSourceLocations = (readVarInt() & BinaryASTWriter.FLAG_SOURCE_LOCATIONS) != 0;
+	}
+
+	/**
+	 * Returns true if there is anything left to read.
+	 */
+	public boolean hasRemaining() {
+		return position() < size;
+	}
+
+	public int readVarInt() throws IOException {
+		long remaining = size - position();
+		if (remaining <= 0) throw new EOFException();
+		require((int) Math.min(5, remaining));
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	public boolean readBoolean() throws IOException {
+		return readVarInt() != 0;
+	}
+
+	public String readString() throws IOException {
+		int code = readVarInt();
+		if (code == BinaryASTWriter.NULL_STRING) return null;
+		if (code != BinaryASTWriter.NEW_STRING) {
+			return strings.get(code - BinaryASTWriter.FIRST_STRING_ID);
+		}
+		int length = readVarInt();
+		if (stringBytes.length < length) {
+			stringBytes = new byte[Math.max(length, stringBytes.length * 2)];
+		}
+		require(length);
+		buffer.get(stringBytes, 0, length);
+		// Each string is only decoded once, so all nodes that use it share one instance
+		String string = new String(stringBytes, 0, length, StandardCharsets.UTF_8);
+		strings.add(string);
+		return string;
+	}
+
+	/**
+	 * Reads an AST written by {@link BinaryASTWriter#writeNode(ASTNode)}.
+	 */
+	public ASTNode readNode() throws IOException {
+		String type = readString();
+		if (type == null) return null;
+		return readNode(new ASTNode(type, readString(), readString(), symbols));
+	}
+
+	/**
+	 * Reads a snapshot written by {@link BinaryASTWriter#writeSnapshot(ASTSnapshot)}.
+	 */
+	public ASTSnapshot readSnapshot() throws IOException {
+		boolean isCorrect = readBoolean();
+		String source = readString();
+		String type = readString();
+		if (type == null) throw new IOException("Snapshots cannot be null");
+		ASTSnapshot snapshot = new ASTSnapshot(type, readString(), readString(), symbols,
+				isCorrect, source);
+		readNode(snapshot);
+		return snapshot;
+	}
+
+	// Reads the rest of the given node, after its type, value and id, using an explicit stack
+	// rather than recursion, so deep ASTs cannot overflow the call stack
+	private ASTNode readNode(ASTNode root) throws IOException {
+		List<ASTNode> nodes = new ArrayList<>();
+		// The number of children each node on the stack has left to read
+		int[] remaining = new int[16];
+		nodes.add(root);
+		remaining[0] = readRest(root);
+		while (!nodes.isEmpty()) {
+			int top = nodes.size() - 1;
+			if (remaining[top] == 0) {
+				nodes.remove(top);
+				continue;
+			}
+			remaining[top]--;
+			String relation = readString();
+			String type = readString();
+			if (type == null) {
+				nodes.get(top).addChild(relation, null);
+				continue;
+			}
+			ASTNode child = new ASTNode(type, readString(), readString(), symbols);
+			nodes.get(top).addChild(relation, child);
+			if (top + 1 == remaining.length) {
+				remaining = Arrays.copyOf(remaining, remaining.length * 2);
+			}
+			nodes.add(child);
+			remaining[top + 1] = readRest(child);
+		}
+		return root;
+	}
+
+	// Reads the given node's source locations, if any, and returns its number of children
+	private int readRest(ASTNode node) throws IOException {
+		if (hasSourceLocations) {
+			int flags = readVarInt();
+			if ((flags & 1) != 0) node.startSourceLocation = readSourceLocation();
+			if ((flags & 2) != 0) node.endSourceLocation = readSourceLocation();
+		}
+		return readVarInt();
+	}
+
+	private SourceLocation readSourceLocation() throws IOException {
+		int line = unZigZag(readVarInt());
+		int col = unZigZag(readVarInt());
+		return new SourceLocation(line, col);
+	}
+
+	private static int unZigZag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private long position() {
+		return windowStart + buffer.position();
+	}
+
+	// Makes sure the next n bytes are in the mapped window, mapping a new one if needed
+	private void require(int n) throws IOException {
+		if (buffer.remaining() >= n) return;
+		long position = position();
+		if (size - position < n) throw new EOFException();
+		map(position);
+	}
+
+	private void map(long start) throws IOException {
+		windowStart = start;
+		buffer = channel.map(MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,183 @@
+package edu.isnap.node;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.isnap.node.ASTNode.SourceLocation;
+
+/**
+ * Writes ASTNodes and ASTSnapshots to a FileChannel in a compact binary format, which can be read
+ * back using a {@link BinaryASTReader}. Each file starts with a short header, followed by whatever
+ * values the caller writes, in order:
+ * <ul>
+ * <li>Integers are written as unsigned varints (7 bits per byte, low bits first).</li>
+ * <li>Strings are interned in a table that is built up as the file is written: the first use of
+ * a string writes it in full (as UTF-8) and assigns it the next id, and later uses write only its
+ * id. Since ASTs repeat a small number of types, values and child relations many times, most
+ * strings cost one or two bytes.</li>
+ * <li>ASTs are written in pre-order: each node's type, value and id, optionally its source
+ * locations, its number of children and then each child's relation and subtree.</li>
+ * </ul>
+ * Closing the writer flushes it and closes the channel.
+ */
+public class BinaryASTWriter implements Closeable {
+
+	final static byte[] MAGIC = { 'A', 'S', 'T', 'B' };
+	final static int VERSION = 1;
+	final static int FLAG_SOURCE_LOCATIONS = 1;
+
+	// String codes: null, a new string that follows in full, or the id of an earlier string + 2
+	final static int NULL_STRING = 0, NEW_STRING = 1, FIRST_STRING_ID = 2;
+
+	private final static int BUFFER_SIZE = 1 << 16;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final Map<String, Integer> stringIDs = new HashMap<>();
+	private final boolean includeSourceLocations;
+
+	/**
+	 * Creates a writer that writes to the given channel, including the source locations of each
+	 * node if includeSourceLocations is true.
+	 */
+	public BinaryASTWriter(FileChannel channel, boolean includeSourceLocations)
+			throws IOException {
+		this.channel = channel;
+		this.includeSourceLocations = includeSourceLocations;
+		ensureCapacity(MAGIC.length);
+		buffer.put(MAGIC);
+		writeVarInt(VERSION);
+		writeVarInt(includeSourceLocations ? FLAG_SOURCE_LOCATIONS : 0);
+	}
+
+	public void writeVarInt(int value) throws IOException {
+		ensureCapacity(5);
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	public void writeBoolean(boolean value) throws IOException {
+		writeVarInt(value ? 1 : 0);
+	}
+
+	/**
+	 * Writes the given string, which may be null, using the interned string table.
+	 */
+	public void writeString(String string) throws IOException {
+		if (string == null) {
+			writeVarInt(NULL_STRING);
+			return;
+		}
+		Integer id = stringIDs.get(string);
+		if (id != null) {
+			writeVarInt(id + FIRST_STRING_ID);
+			return;
+		}
+		stringIDs.put(string, stringIDs.size());
+		writeVarInt(NEW_STRING);
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(bytes.length);
+		if (bytes.length > buffer.capacity()) {
+			flush();
+			ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+			while (wrapped.hasRemaining()) channel.write(wrapped);
+		} else {
+			ensureCapacity(bytes.length);
+			buffer.put(bytes);
+		}
+	}
+
+	/**
+	 * Writes the given AST, which may be null. Only the AST itself is written, even if the node is
+	 * an ASTSnapshot; use {@link BinaryASTWriter#writeSnapshot(ASTSnapshot)} to include its
+	 * correctness and source.
+	 */
+	public void writeNode(ASTNode node) throws IOException {
+		// Nodes are written as they are visited, using an explicit stack rather than recursion,
+		// so deep ASTs cannot overflow the call stack. The visitor cannot throw IOExceptions, so
+		// they are wrapped and unwrapped here.
+		try {
+			TreeWalker.walk(node, new TreeWalker.Visitor<ASTNode>() {
+				// The nodes on the current path, so children can look up their relations
+				private ASTNode[] path = new ASTNode[16];
+
+				@Override
+				public boolean enter(ASTNode node, int index, int depth) {
+					try {
+						if (depth > 0) writeString(path[depth - 1].childRelation(index));
+						if (!writeShallow(node)) return false;
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					if (depth == path.length) path = Arrays.copyOf(path, depth * 2);
+					path[depth] = node;
+					return true;
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	// Writes the given node, up to its children, and returns false if it was null
+	private boolean writeShallow(ASTNode node) throws IOException {
+		if (node == null) {
+			// Null children are written as a null type
+			writeString(null);
+			return false;
+		}
+		writeString(node.type);
+		writeString(node.value);
+		writeString(node.id);
+		if (includeSourceLocations) {
+			SourceLocation start = node.startSourceLocation, end = node.endSourceLocation;
+			writeVarInt((start == null ? 0 : 1) | (end == null ? 0 : 2));
+			if (start != null) writeSourceLocation(start);
+			if (end != null) writeSourceLocation(end);
+		}
+		writeVarInt(node.children().size());
+		return true;
+	}
+
+	public void writeSnapshot(ASTSnapshot snapshot) throws IOException {
+		writeBoolean(snapshot.isCorrect);
+		writeString(snapshot.source);
+		writeNode(snapshot);
+	}
+
+	private void writeSourceLocation(SourceLocation location) throws IOException {
+		writeVarInt(zigZag(location.line));
+		writeVarInt(zigZag(location.col));
+	}
+
+	// Maps small negative numbers to small positive ones, so they stay short as varints
+	private static int zigZag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private void ensureCapacity(int bytes) throws IOException {
+		if (buffer.remaining() < bytes) flush();
+	}
+
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		channel.close();
+	}
+}
@@ -0,0 +1,190 @@
+package edu.isnap.node;
+
+import java.util.Arrays;
+
+/**
+ * Aligns two sequences of children, given the reward for pairing each child in the first sequence
+ * with each child in the second, choosing the ordered pairing with the highest total reward.
+ *
+ * Small sequences are aligned with a full matrix. Larger sequences (e.g. Snap scripts or Python
+ * bodies with hundreds of children) use a divide and conquer traceback in the style of
+ * Hirschberg's algorithm, which only keeps O(log n) rows of the matrix at a time, recomputing
+ * them as needed. The rewards for these sequences can also be computed one row at a time (see
+ * {@link RowScores}), so that no quadratic array is needed at all. Both produce exactly the same
+ * pairing, since the divide and conquer approach follows the same traceback through the same
+ * matrix values.
+ *
+ * All matrices are allocated on the scratch stack of an {@link AlignmentArena}, and are referred
+ * to by their offsets in it.
+ */
+class ChildSequenceAlignment {
+
+	/**
+	 * The largest matrix (in cells) that will be allocated in full. Larger alignments use the
+	 * linear-space traceback.
+	 */
+	static final int FULL_MATRIX_MAX_CELLS = 128 * 128;
+
+	static boolean usesFullMatrix(int nA, int nB) {
+		return (long) (nA + 1) * (nB + 1) <= FULL_MATRIX_MAX_CELLS;
+	}
+
+	/**
+	 * Computes the rewards of a child matrix one row at a time, for sequences whose rewards are
+	 * too costly to keep for every pair of children.
+	 */
+	interface RowScores {
+		/**
+		 * Writes the rewards for pairing the child at indexA in the first sequence with each of
+		 * the children at 0 to count - 1 in the second to arena.scratch, starting at offset row.
+		 * Any other scratch it allocates must be released before it returns, but the arena's
+		 * arrays may grow.
+		 */
+		void score(AlignmentArena arena, int indexA, int count, int row);
+	}
+
+	/**
+	 * Aligns the two sequences, where arena.scratch[scores + indexA * nB + indexB] holds the
+	 * reward for pairing the children at indexA and indexB. Returns the offset of the result on
+	 * the scratch stack: the number of pairs, followed by the paired indices as (indexA, indexB)
+	 * pairs, from last to first. The total reward of the alignment is the sum of the rewards of
+	 * these pairs. The result is released along with the rest of the caller's scratch.
+	 */
+	static int align(AlignmentArena arena, int nA, int nB, int scores) {
+		if (!usesFullMatrix(nA, nB)) {
+			return align(arena, nA, nB, (scoreArena, indexA, count, row) -> System.arraycopy(
+					scoreArena.scratch, scores + indexA * nB, scoreArena.scratch, row, count));
+		}
+		int pairs = allocatePairs(arena, nA, nB);
+		if (nA == 0 || nB == 0) return pairs;
+		int mark = arena.scratchTop;
+		alignFullMatrix(arena, nA, nB, scores, pairs);
+		arena.scratchTop = mark;
+		return pairs;
+	}
+
+	/**
+	 * Aligns the two sequences like {@link #align(AlignmentArena, int, int, int)}, but computes
+	 * the rewards of each row with the given RowScores when it is needed, so no more than
+	 * O(log n) rows of rewards or matrix values are kept at a time. Rows may be scored more than
+	 * once.
+	 */
+	static int align(AlignmentArena arena, int nA, int nB, RowScores rowScores) {
+		int pairs = allocatePairs(arena, nA, nB);
+		if (nA == 0 || nB == 0) return pairs;
+		int mark = arena.scratchTop;
+		int topRow = arena.allocateScratch(nB + 1);
+		Arrays.fill(arena.scratch, topRow, topRow + nB + 1, 0);
+		traceback(arena, 0, topRow, nA, nB, rowScores, pairs);
+		arena.scratchTop = mark;
+		return pairs;
+	}
+
+	private static int allocatePairs(AlignmentArena arena, int nA, int nB) {
+		int pairs = arena.allocateScratch(1 + 2 * Math.min(nA, nB));
+		arena.scratch[pairs] = 0;
+		return pairs;
+	}
+
+	private static void alignFullMatrix(AlignmentArena arena, int nA, int nB, int scores,
+			int pairs) {
+		int width = nB + 1;
+		int matrix = arena.allocateScratch((nA + 1) * width);
+		int[] scratch = arena.scratch;
+		Arrays.fill(scratch, matrix, matrix + width, 0);
+		for (int indexA = 1; indexA <= nA; indexA++) {
+			fillRow(scratch, matrix + (indexA - 1) * width, matrix + indexA * width, nB,
+					scores + (indexA - 1) * nB);
+		}
+		tracebackBlock(scratch, matrix, width, 0, nA, nB, pairs);
+	}
+
+	/**
+	 * Computes the next row of the matrix (columns 0 to lastColumn) from the previous row, where
+	 * both rows and the row's scores are offsets in the given scratch array.
+	 */
+	static void fillRow(int[] scratch, int previous, int row, int lastColumn, int scores) {
+		int offset = scores - 1;
+		scratch[row] = 0;
+		for (int indexB = 1; indexB <= lastColumn; indexB++) {
+			scratch[row + indexB] = Math.max(Math.max(
+					scratch[previous + indexB],
+					scratch[row + indexB - 1]),
+					scratch[previous + indexB - 1] + scratch[offset + indexB]);
+		}
+	}
+
+	/**
+	 * Follows the traceback through the given block of rows, where the block's first row is row
+	 * topIndexA, starting at (endIndexA, endIndexB) and stopping when it reaches row topIndexA or
+	 * column 0. Returns the column at which it stopped.
+	 */
+	private static int tracebackBlock(int[] scratch, int block, int width, int topIndexA,
+			int endIndexA, int endIndexB, int pairs) {
+		int indexA = endIndexA, indexB = endIndexB;
+		while (indexA > topIndexA && indexB > 0) {
+			int row = block + (indexA - topIndexA) * width, previous = row - width;
+			int r = scratch[row + indexB];
+			if (r == scratch[previous + indexB]) {
+				indexA--;
+				continue;
+			}
+			if (r == scratch[row + indexB - 1]) {
+				indexB--;
+				continue;
+			}
+			int count = scratch[pairs]++;
+			scratch[pairs + 1 + count * 2] = indexA - 1;
+			scratch[pairs + 2 + count * 2] = indexB - 1;
+			indexA--; indexB--;
+		}
+		return indexB;
+	}
+
+	/**
+	 * Follows the traceback from (endIndexA, endIndexB) until it reaches row topIndexA or column
+	 * 0, given the values of row topIndexA. The rows in between are not stored: we compute the
+	 * middle row, follow the traceback through the lower half to find where it crosses the middle
+	 * row, and then follow it through the upper half from there. Returns the column at which the
+	 * traceback reached row topIndexA.
+	 *
+	 * Note: rowScores may grow the arena, so we always access its arrays through the arena.
+	 */
+	private static int traceback(AlignmentArena arena, int topIndexA, int topRow, int endIndexA,
+			int endIndexB, RowScores rowScores, int pairs) {
+		int nRows = endIndexA - topIndexA + 1;
+		int width = endIndexB + 1;
+		int mark = arena.scratchTop;
+		int scores = arena.allocateScratch(endIndexB);
+		if (nRows <= 2 || usesFullMatrix(nRows - 1, endIndexB)) {
+			int block = arena.allocateScratch(nRows * width);
+			System.arraycopy(arena.scratch, topRow, arena.scratch, block, width);
+			for (int i = 1; i < nRows; i++) {
+				rowScores.score(arena, topIndexA + i - 1, endIndexB, scores);
+				fillRow(arena.scratch, block + (i - 1) * width, block + i * width, endIndexB,
+						scores);
+			}
+			int indexB = tracebackBlock(arena.scratch, block, width, topIndexA, endIndexA,
+					endIndexB, pairs);
+			arena.scratchTop = mark;
+			return indexB;
+		}
+
+		int midIndexA = (topIndexA + endIndexA) >>> 1;
+		// Alternate between two rows, so we never overwrite the top row, which we need for the
+		// upper half
+		int rowA = arena.allocateScratch(width), rowB = arena.allocateScratch(width);
+		int midRow = topRow;
+		for (int indexA = topIndexA + 1; indexA <= midIndexA; indexA++) {
+			int row = midRow == rowA ? rowB : rowA;
+			rowScores.score(arena, indexA - 1, endIndexB, scores);
+			fillRow(arena.scratch, midRow, row, endIndexB, scores);
+			midRow = row;
+		}
+
+		int indexB = traceback(arena, midIndexA, midRow, endIndexA, endIndexB, rowScores, pairs);
+		arena.scratchTop = mark;
+		if (indexB == 0) return 0;
+		return traceback(arena, topIndexA, topRow, midIndexA, indexB, rowScores, pairs);
+	}
+}
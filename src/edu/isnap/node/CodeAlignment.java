@@ -1,16 +1,40 @@
 package edu.isnap.node;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 import java.util.function.Consumer;
 
 import edu.isnap.util.map.BiMap;
+import edu.isnap.util.map.CountMap;
 
-public class CodeAlignment {
+public class CodeAlignment implements TreeAligner {
+
+	private final static int NO_BOUND = Integer.MIN_VALUE;
+
+	/**
+	 * The default size (in cells) of the smallest child matrix whose child pairs are scored in
+	 * parallel, when a ForkJoinPool is given.
+	 */
+	public final static int DEFAULT_PARALLEL_THRESHOLD = 64;
 
 	private final int matchReward;
 	private final int renamePenalty;
 
+	private final ForkJoinPool pool;
+	private final int parallelThreshold;
+
+	// If null, the arena of the current thread is used
+	private final AlignmentArena arena;
+
+	private final boolean useIDAnchors;
+
 	public static void main(String[] args) {
 		CodeAlignment align = new CodeAlignment();
 
@@ -36,8 +60,61 @@ public class CodeAlignment {
 	}
 
 	public CodeAlignment(int matchReward, int renamePenalty) {
+		this(matchReward, renamePenalty, null, 0);
+	}
+
+	/**
+	 * Creates a CodeAlignment that scores the child pairs of any child matrix with at least
+	 * parallelThreshold cells as separate tasks on the given pool, and then aligns the children
+	 * sequentially using those scores. Each pair's score does not depend on any other pair, so the
+	 * result is identical to the sequential alignment. If pool is null, the alignment is
+	 * sequential.
+	 */
+	public CodeAlignment(int matchReward, int renamePenalty, ForkJoinPool pool,
+			int parallelThreshold) {
+		this(matchReward, renamePenalty, pool, parallelThreshold, null, false);
+	}
+
+	/**
+	 * Creates a CodeAlignment that keeps its working memory in the given arena, rather than the
+	 * arena of the current thread. The CodeAlignment must then only be used by one thread at a
+	 * time.
+	 */
+	public CodeAlignment(int matchReward, int renamePenalty, AlignmentArena arena) {
+		this(matchReward, renamePenalty, null, 0, arena, false);
+	}
+
+	private CodeAlignment(int matchReward, int renamePenalty, ForkJoinPool pool,
+			int parallelThreshold, AlignmentArena arena, boolean useIDAnchors) {
 		this.matchReward = matchReward;
 		this.renamePenalty = renamePenalty;
+		this.pool = pool;
+		this.parallelThreshold = parallelThreshold;
+		this.arena = arena;
+		this.useIDAnchors = useIDAnchors;
+	}
+
+	/**
+	 * Creates a CodeAlignment that scores large child matrices in parallel on the common
+	 * ForkJoinPool, using the {@link CodeAlignment#DEFAULT_PARALLEL_THRESHOLD}.
+	 */
+	public static CodeAlignment parallel(int matchReward, int renamePenalty) {
+		return new CodeAlignment(matchReward, renamePenalty, ForkJoinPool.commonPool(),
+				DEFAULT_PARALLEL_THRESHOLD);
+	}
+
+	/**
+	 * Creates a CodeAlignment that uses node ids as anchors. Before aligning the children of two
+	 * paired nodes, any child of the first with the same (non-null) id as a child of the second is
+	 * paired with it, keeping the largest set of such anchors that are in the same order in both.
+	 * Only the anchored pairs and the pairs of children between consecutive anchors are then
+	 * aligned, so when most nodes keep their ids (e.g. blocks in consecutive iSnap snapshots),
+	 * most child matrices are never filled. If the nodes have no ids in common, this is the same
+	 * as the default alignment. Note that the pairing may differ from the default alignment,
+	 * since anchored nodes are never paired with any other node.
+	 */
+	public static CodeAlignment anchoredByIDs(int matchReward, int renamePenalty) {
+		return new CodeAlignment(matchReward, renamePenalty, null, 0, null, true);
 	}
 
 	private static class ASTBuilder {
@@ -76,7 +153,7 @@ public class CodeAlignment {
 	}
 
 	public static class NodePairs extends BiMap<ASTNode, ASTNode> {
-		private int reward;
+		int reward;
 
 		public int getReward() {
 			return reward;
@@ -87,23 +164,453 @@ public class CodeAlignment {
 		}
 	}
 
+	/**
+	 * A pairing between the nodes of two {@link CompactTree}s, identified by their positions.
+	 */
+	public static class IndexPairs {
+		private final int[] fromPairs, toPairs;
+		private final int reward;
+
+		IndexPairs(int nNodesFrom, int nNodesTo, int reward) {
+			fromPairs = new int[nNodesFrom];
+			toPairs = new int[nNodesTo];
+			Arrays.fill(fromPairs, -1);
+			Arrays.fill(toPairs, -1);
+			this.reward = reward;
+		}
+
+		void put(int from, int to) {
+			fromPairs[from] = to;
+			toPairs[to] = from;
+		}
+
+		public int getReward() {
+			return reward;
+		}
+
+		/** Returns the position paired with the given from-position, or -1 if it is unpaired. */
+		public int getFrom(int from) {
+			return fromPairs[from];
+		}
+
+		/** Returns the position paired with the given to-position, or -1 if it is unpaired. */
+		public int getTo(int to) {
+			return toPairs[to];
+		}
+
+		public boolean containsFrom(int from) {
+			return fromPairs[from] != -1;
+		}
+
+		public boolean containsTo(int to) {
+			return toPairs[to] != -1;
+		}
+	}
+
+	/**
+	 * Aligns two CompactTrees, which must share a {@link SymbolTable}, giving the same pairing as
+	 * aligning the ASTNodes they were created from. The result is indexed by node position, which
+	 * avoids the overhead of node objects when aligning very many trees.
+	 */
+	public IndexPairs align(CompactTree a, CompactTree b) {
+		return new CompactTreeAlignment(matchReward, renamePenalty, a, b, arena()).align();
+	}
+
+	@Override
 	public NodePairs align(ASTNode a, ASTNode b) {
-		NodePairs mapping = new NodePairs();
 //		long time = System.currentTimeMillis();
-		mapping.reward = align(a, b, mapping);
-//		System.out.println("Nodes: " + a.treeSize() +
-//				" Time: " + (System.currentTimeMillis() - time));
+		prepareForParallel(a, b);
+		AlignmentArena arena = arena();
+		int scratchMark = arena.scratchTop, recordsMark = arena.recordsTop;
+		try {
+			int record = alignPair(arena, a, b, NO_BOUND, indexIDs(b));
+			NodePairs mapping = toNodePairs(arena, record, a, b);
+//			System.out.println("Nodes: " + a.treeSize() +
+//					" Time: " + (System.currentTimeMillis() - time));
+			return mapping;
+		} finally {
+			release(arena, scratchMark, recordsMark);
+		}
+	}
+
+	/**
+	 * Returns the reward of aligning the given nodes, like
+	 * {@link CodeAlignment#align(ASTNode, ASTNode)}, without building the pairing. Once the arena
+	 * has grown to fit the trees being aligned, this allocates no memory, unless aligning in
+	 * parallel or anchoring by ids (see edu.isnap.rating.AlignmentAllocations).
+	 */
+	public int getReward(ASTNode a, ASTNode b) {
+		prepareForParallel(a, b);
+		AlignmentArena arena = arena();
+		int scratchMark = arena.scratchTop, recordsMark = arena.recordsTop;
+		try {
+			// No pairing is built, so no records are needed
+			return scorePair(arena, a, b, indexIDs(b));
+		} finally {
+			release(arena, scratchMark, recordsMark);
+		}
+	}
+
+	/**
+	 * Aligns the given nodes, like {@link CodeAlignment#align(ASTNode, ASTNode)}, but returns null
+	 * if the reward of the alignment cannot exceed the given threshold. This is useful when
+	 * searching for the nearest neighbor of a node, since most candidates cannot beat the current
+	 * best. It first checks cheap upper bounds on the reward, based on the sizes of the trees and
+	 * the overlap of their node types, and then stops aligning the root's children once the rows
+	 * of the child matrix filled so far show the threshold cannot be exceeded.
+	 */
+	@Override
+	public NodePairs alignWithBound(ASTNode a, ASTNode b, int threshold) {
+		// The bounds below assume no pair is worth more than an exact match
+		if (!canPairIdenticalSubtrees()) {
+			NodePairs mapping = align(a, b);
+			return mapping.reward > threshold ? mapping : null;
+		}
+
+		// Each pair of nodes is worth at most the match reward, and at most as many nodes can be
+		// paired as there are in the smaller tree...
+		int sizeA = countNodes(a), sizeB = countNodes(b);
+		if (matchReward * Math.min(sizeA, sizeB) <= threshold) return null;
+		// ...and pairs of nodes with different types are worth no more than a rename
+		if (a != null && b != null && typeOverlapBound(a, b, sizeA, sizeB) <= threshold) {
+			return null;
+		}
+
+		prepareForParallel(a, b);
+		AlignmentArena arena = arena();
+		int scratchMark = arena.scratchTop, recordsMark = arena.recordsTop;
+		try {
+			int record = alignPair(arena, a, b, threshold, indexIDs(b));
+			if (record == NO_RECORD || arena.records[record + REWARD] <= threshold) return null;
+			return toNodePairs(arena, record, a, b);
+		} finally {
+			release(arena, scratchMark, recordsMark);
+		}
+	}
+
+	private int typeOverlapBound(ASTNode a, ASTNode b, int sizeA, int sizeB) {
+		// The type counts of each tree are cached, so a tree compared with many others (e.g. in a
+		// nearest neighbor search) is only counted once
+		CountMap<String> typesA = a.typeCounts(), typesB = b.typeCounts();
+		if (typesA.size() > typesB.size()) {
+			CountMap<String> swap = typesA;
+			typesA = typesB;
+			typesB = swap;
+		}
+		int overlap = 0;
+		for (String type : typesA.keySet()) {
+			overlap += Math.min(typesA.getCount(type), typesB.getCount(type));
+		}
+		int nPairs = Math.min(sizeA, sizeB);
+		// A pair with a null child is worth 0, which may be more than a rename
+		int mismatchReward = Math.max(0, matchReward - renamePenalty);
+		return overlap * matchReward + (nPairs - overlap) * mismatchReward;
+	}
+
+	/**
+	 * If this CodeAlignment uses id anchors, returns a map from each id in the given tree to the
+	 * first node with that id. Otherwise, or if the tree has no ids, returns null.
+	 */
+	private Map<String, ASTNode> indexIDs(ASTNode root) {
+		if (!useIDAnchors || root == null) return null;
+		Map<String, ASTNode> ids = new HashMap<>();
+		root.recurse(node -> {
+			if (node.id != null) ids.putIfAbsent(node.id, node);
+		});
+		return ids.isEmpty() ? null : ids;
+	}
+
+	private AlignmentArena arena() {
+		return arena != null ? arena : AlignmentArena.forCurrentThread();
+	}
+
+	private static void release(AlignmentArena arena, int scratchMark, int recordsMark) {
+		arena.scratchTop = scratchMark;
+		arena.recordsTop = recordsMark;
+		// Only shrinks the arena if this was the outermost alignment using it
+		arena.trim();
+	}
+
+	private void prepareForParallel(ASTNode a, ASTNode b) {
+		if (pool == null) return;
+		// Structural hashes are cached lazily and are not safe to compute from multiple threads,
+		// so we compute them for both trees before any tasks are started. Task results are
+		// published to this thread by join().
+		if (a != null) a.structuralHash();
+		if (b != null) b.structuralHash();
+	}
+
+	private boolean usesParallel(int nChildrenA, int nChildrenB) {
+		return pool != null && (long) nChildrenA * nChildrenB >= parallelThreshold;
+	}
+
+	/**
+	 * Aligns one pair of children in the arena of the thread that runs it, and returns a copy of
+	 * the block of records it added, which can be appended to another arena, since records only
+	 * refer to each other by relative offsets.
+	 */
+	@SuppressWarnings("serial")
+	private class ChildPairTask extends RecursiveTask<int[]> {
+		private final ASTNode a, b;
+		private final Map<String, ASTNode> ids;
+		// The index of the pair in the child matrix
+		private final int index;
+		// The offset of the pair's record in the returned block
+		private int record;
+
+		ChildPairTask(ASTNode a, ASTNode b, Map<String, ASTNode> ids, int index) {
+			this.a = a;
+			this.b = b;
+			this.ids = ids;
+			this.index = index;
+		}
+
+		@Override
+		protected int[] compute() {
+			// Tasks always use their thread's arena, even if this CodeAlignment has its own, since
+			// they may run concurrently
+			AlignmentArena arena = AlignmentArena.forCurrentThread();
+			int recordsMark = arena.recordsTop;
+			int record = alignPair(arena, a, b, NO_BOUND, ids);
+			this.record = record - recordsMark;
+			int[] block = Arrays.copyOfRange(arena.records, recordsMark, arena.recordsTop);
+			arena.recordsTop = recordsMark;
+			arena.trim();
+			return block;
+		}
+	}
+
+	/**
+	 * Scores every pair of the given children within the allowed rowRanges as a task on the pool,
+	 * storing the rewards and the records in the same layout as the sequential loop.
+	 */
+	private void scoreChildPairsInParallel(AlignmentArena arena, List<ASTNode> childrenA,
+			List<ASTNode> childrenB, Map<String, ASTNode> ids, int rowRanges, int scores,
+			int childRecords, int childBlocks) {
+		int nChildrenA = childrenA.size(), nChildrenB = childrenB.size();
+		List<ChildPairTask> tasks = new ArrayList<>(nChildrenA * nChildrenB);
+		Arrays.fill(arena.scratch, scores, scores + nChildrenA * nChildrenB, NO_PAIR_SCORE);
+		for (int indexA = 0; indexA < nChildrenA; indexA++) {
+			int fromB = rangeStart(arena, rowRanges, indexA);
+			int toB = rangeEnd(arena, rowRanges, indexA, nChildrenB);
+			for (int indexB = fromB; indexB < toB; indexB++) {
+				tasks.add(new ChildPairTask(childrenA.get(indexA), childrenB.get(indexB), ids,
+						indexA * nChildrenB + indexB));
+			}
+		}
+		invokeAll(tasks);
+		for (ChildPairTask task : tasks) {
+			int[] block = task.join();
+			int start = arena.allocateRecord(block.length);
+			System.arraycopy(block, 0, arena.records, start, block.length);
+			int record = start + task.record;
+			arena.scratch[scores + task.index] = arena.records[record + REWARD];
+			arena.scratch[childRecords + task.index] = record;
+			arena.scratch[childBlocks + task.index] = start;
+		}
+	}
+
+	private void invokeAll(List<? extends ForkJoinTask<?>> tasks) {
+		// Nested matrices are forked from the worker running their parent; only the top-level
+		// matrix has to be submitted to the pool
+		if (ForkJoinTask.getPool() == pool) {
+			ForkJoinTask.invokeAll(tasks);
+		} else {
+			pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+		}
+	}
+
+	/*
+	 * The result of aligning each pair of subtrees is stored as a record in the arena: its reward,
+	 * flags, and the number of child pairs chosen by the traceback of its child matrix, followed
+	 * by the indices of each of these pairs and the offset of its record, relative to this
+	 * record. Each pair of subtrees is only reachable from the pair of its parents, so it is
+	 * aligned exactly once per alignment. The traceback is done while the child matrix is still
+	 * available, so building the final mapping only walks these records, rather than realigning
+	 * each matched pair of subtrees.
+	 *
+	 * The records of a subtree pair always occupy a contiguous block ending with its own record,
+	 * so once the traceback of a child matrix is done, the blocks of the matched pairs are moved
+	 * down over those of the unmatched pairs, and only the matched pairs' records are kept. Child
+	 * matrices too large to fill in full are only scored, without records, and then only their
+	 * matched pairs are aligned (see alignWidePair).
+	 */
+	private final static int REWARD = 0, FLAGS = 1, N_MATCHED = 2, MATCHED = 3, MATCH_SIZE = 3;
+	// Set if the subtrees are identical, and paired node-for-node
+	private final static int FLAG_IDENTICAL = 1;
+	// Set if the subtree from a is a null child, which is never paired
+	private final static int FLAG_NULL = 2;
+	private final static int NO_RECORD = -1;
+
+	// The score of a pair of children that cannot be paired, which no traceback will choose
+	private final static int NO_PAIR_SCORE = Integer.MIN_VALUE / 2;
+	// A pair of children whose score has not been memoized yet (see WideRowScores)
+	private final static int UNSCORED = Integer.MIN_VALUE;
+	// The smallest child whose pairs with other large children are memoized in a wide matrix
+	private final static int LARGE_CHILD_NODES = 128;
+
+	private static int addRecord(AlignmentArena arena, int reward, int flags, int nMatched) {
+		int record = arena.allocateRecord(MATCHED + nMatched * MATCH_SIZE);
+		int[] records = arena.records;
+		records[record + REWARD] = reward;
+		records[record + FLAGS] = flags;
+		records[record + N_MATCHED] = nMatched;
+		return record;
+	}
+
+	private static int recordEnd(int[] records, int record) {
+		return record + MATCHED + records[record + N_MATCHED] * MATCH_SIZE;
+	}
+
+	private static NodePairs toNodePairs(AlignmentArena arena, int record, ASTNode a, ASTNode b) {
+		NodePairs mapping = new NodePairs();
+		mapping.reward = arena.records[record + REWARD];
+		addTo(arena.records, record, a, b, mapping);
 		return mapping;
 	}
 
-	private int align(ASTNode a, ASTNode b, BiMap<ASTNode, ASTNode> mapping) {
-		if (a == null) return b == null ? matchReward : 0;
+	private static void addTo(int[] records, int record, ASTNode a, ASTNode b,
+			BiMap<ASTNode, ASTNode> mapping) {
+		int flags = records[record + FLAGS];
+		if ((flags & FLAG_NULL) != 0) return;
+		if ((flags & FLAG_IDENTICAL) != 0) {
+			addIdentical(a, b, mapping);
+			return;
+		}
+		mapping.put(a, b);
+		List<ASTNode> childrenA = a.children(), childrenB = b.children();
+		int nMatched = records[record + N_MATCHED];
+		for (int i = 0; i < nMatched; i++) {
+			int match = record + MATCHED + i * MATCH_SIZE;
+			addTo(records, record - records[match + 2],
+					childrenA.get(records[match]), childrenB.get(records[match + 1]), mapping);
+		}
+	}
+
+	private static void addIdentical(ASTNode a, ASTNode b, BiMap<ASTNode, ASTNode> mapping) {
+		if (a == null) return;
+		mapping.put(a, b);
+		List<ASTNode> childrenA = a.children(), childrenB = b.children();
+		for (int i = 0; i < childrenA.size(); i++) {
+			addIdentical(childrenA.get(i), childrenB.get(i), mapping);
+		}
+	}
+
+	/**
+	 * Returns true if identical subtrees can be paired node-for-node without filling their child
+	 * matrices. When no pair can be worth more than an exact match, the only way to reach the
+	 * maximum reward for two identical subtrees is to pair every node with its counterpart, so
+	 * this gives the same result as the full alignment.
+	 */
+	private boolean canPairIdenticalSubtrees() {
+		return matchReward > 0 && renamePenalty >= 0;
+	}
+
+	private static int countNodes(ASTNode node) {
+		// Null children are aligned (and rewarded) like leaf nodes. The size of a subtree already
+		// counts its null children, and is cached along with its structural hash, so this does
+		// not walk the subtree unless it was modified.
+		return node == null ? 1 : node.treeSize();
+	}
+
+	/**
+	 * Finds the children of a (the parent of childrenA) that have the same id as a child of b,
+	 * and keeps the longest sequence of them whose counterparts in b are in the same order. If
+	 * there are any, returns the offset of the range of b's children [start, end) that each child
+	 * of a may be paired with: an anchored child may only be paired with its counterpart, and any
+	 * other child only with the children of b between the surrounding anchors' counterparts.
+	 * Otherwise, returns {@link CodeAlignment#NO_RECORD}.
+	 */
+	private static int findAnchors(AlignmentArena arena, List<ASTNode> childrenA, ASTNode b,
+			Map<String, ASTNode> ids) {
+		int nChildrenA = childrenA.size(), nChildrenB = b.children().size();
+		// The index in b's children of each child of a's counterpart, or -1 if it has none
+		int counterparts = arena.allocateScratch(nChildrenA);
+		int nCandidates = 0;
+		for (int indexA = 0; indexA < nChildrenA; indexA++) {
+			ASTNode childA = childrenA.get(indexA);
+			ASTNode childB = childA == null || childA.id == null ? null : ids.get(childA.id);
+			int indexB = childB != null && childB.parent() == b ? childB.index() : -1;
+			arena.scratch[counterparts + indexA] = indexB;
+			if (indexB != -1) nCandidates++;
+		}
+		if (nCandidates == 0) return NO_RECORD;
+
+		// Find the longest increasing subsequence of counterparts, where tails[length] is the
+		// child of a that ends the best sequence found so far with that length
+		int tails = arena.allocateScratch(nCandidates + 1);
+		int previous = arena.allocateScratch(nChildrenA);
+		int rowRanges = arena.allocateScratch(nChildrenA * 2);
+		int[] scratch = arena.scratch;
+		int length = 0;
+		for (int indexA = 0; indexA < nChildrenA; indexA++) {
+			int indexB = scratch[counterparts + indexA];
+			if (indexB == -1) continue;
+			int low = 1, high = length;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (scratch[counterparts + scratch[tails + mid]] < indexB) low = mid + 1;
+				else high = mid - 1;
+			}
+			scratch[previous + indexA] = low > 1 ? scratch[tails + low - 1] : -1;
+			scratch[tails + low] = indexA;
+			if (low > length) length = low;
+		}
+
+		// Mark the anchors in the row ranges, then fill in the ranges of the rows between them
+		Arrays.fill(scratch, rowRanges, rowRanges + nChildrenA * 2, -1);
+		for (int indexA = scratch[tails + length]; indexA != -1;
+				indexA = scratch[previous + indexA]) {
+			int indexB = scratch[counterparts + indexA];
+			scratch[rowRanges + indexA * 2] = indexB;
+			scratch[rowRanges + indexA * 2 + 1] = indexB + 1;
+		}
+		int start = 0;
+		for (int indexA = 0; indexA < nChildrenA; indexA++) {
+			int range = rowRanges + indexA * 2;
+			if (scratch[range] != -1) start = scratch[range + 1];
+			else scratch[range] = start;
+		}
+		int end = nChildrenB;
+		for (int indexA = nChildrenA - 1; indexA >= 0; indexA--) {
+			int range = rowRanges + indexA * 2;
+			if (scratch[range + 1] != -1) end = scratch[range];
+			else scratch[range + 1] = end;
+		}
+		return rowRanges;
+	}
+
+	private static int rangeStart(AlignmentArena arena, int rowRanges, int indexA) {
+		return rowRanges == NO_RECORD ? 0 : arena.scratch[rowRanges + indexA * 2];
+	}
+
+	private static int rangeEnd(AlignmentArena arena, int rowRanges, int indexA,
+			int nChildrenB) {
+		return rowRanges == NO_RECORD ? nChildrenB : arena.scratch[rowRanges + indexA * 2 + 1];
+	}
+
+	/**
+	 * Aligns the given pair of subtrees, adding its records to the arena, and returns the offset
+	 * of its record. If bound is not {@link CodeAlignment#NO_BOUND}, returns
+	 * {@link CodeAlignment#NO_RECORD} as soon as the reward is known to be no more than bound. If
+	 * ids is not null, it maps the ids of the tree containing b to their nodes, which are used
+	 * to anchor the alignment of the children.
+	 *
+	 * Note: the arena may grow during any call that adds records or scratch, so we always access
+	 * its arrays through the arena.
+	 */
+	private int alignPair(AlignmentArena arena, ASTNode a, ASTNode b, int bound,
+			Map<String, ASTNode> ids) {
+		if (a == null) return addRecord(arena, b == null ? matchReward : 0, FLAG_NULL, 0);
+
+		if (canPairIdenticalSubtrees() && a.structuralHash() == b.structuralHash() &&
+				a.equals(b, false, false)) {
+			return addRecord(arena, matchReward * countNodes(a), FLAG_IDENTICAL, 0);
+		}
 
 		int reward = matchReward;
 		if (!a.shallowEquals(b, false)) reward -= renamePenalty;
 
-		if (mapping != null) mapping.put(a, b);
-
 		List<ASTNode> childrenA = a.children();
 		List<ASTNode> childrenB = b.children();
 
@@ -112,52 +619,350 @@ public class CodeAlignment {
 
 		if (nChildrenA == 0 || nChildrenB == 0) {
 //			System.out.println("Testing leaves: " + a + " / " + b);
-			return reward;
+			return addRecord(arena, reward, 0, 0);
+		}
+
+		int scratchMark = arena.scratchTop, recordsMark = arena.recordsTop;
+
+		// If any children are anchored by their ids, only some pairs of children are scored
+		int rowRanges = ids == null ? NO_RECORD : findAnchors(arena, childrenA, b, ids);
+
+		if (!ChildSequenceAlignment.usesFullMatrix(nChildrenA, nChildrenB)) {
+			return alignWidePair(arena, a, b, reward, bound, ids, rowRanges, scratchMark,
+					recordsMark);
+		}
+
+		int nPairs = nChildrenA * nChildrenB;
+		int scores = arena.allocateScratch(nPairs);
+		int childRecords = arena.allocateScratch(nPairs);
+		// The start of the block of records added for each pair
+		int childBlocks = arena.allocateScratch(nPairs);
+
+		// To bound the reward, we track the last row of the child matrix and the number of nodes
+		// in the children of a that have not yet been aligned
+		boolean bounded = bound != NO_BOUND;
+		int previousRow = 0, row = 0;
+		int remainingNodesA = 0;
+		if (bounded) {
+			previousRow = arena.allocateScratch(nChildrenB + 1);
+			row = arena.allocateScratch(nChildrenB + 1);
+			Arrays.fill(arena.scratch, previousRow, previousRow + nChildrenB + 1, 0);
+			remainingNodesA = countNodes(a) - 1;
+		}
+
+		// The bounded alignment needs the rows in order, so it is never scored in parallel
+		if (!bounded && usesParallel(nChildrenA, nChildrenB)) {
+			scoreChildPairsInParallel(arena, childrenA, childrenB, ids, rowRanges, scores,
+					childRecords, childBlocks);
+		} else {
+			for (int indexA = 0; indexA < nChildrenA; indexA++) {
+				ASTNode childA = childrenA.get(indexA);
+				int fromB = rangeStart(arena, rowRanges, indexA);
+				int toB = rangeEnd(arena, rowRanges, indexA, nChildrenB);
+				for (int indexB = 0; indexB < nChildrenB; indexB++) {
+					int index = indexA * nChildrenB + indexB;
+					if (indexB < fromB || indexB >= toB) {
+						arena.scratch[scores + index] = NO_PAIR_SCORE;
+						continue;
+					}
+					ASTNode childB = childrenB.get(indexB);
+
+					int start = arena.recordsTop;
+					int record = alignPair(arena, childA, childB, NO_BOUND, ids);
+					arena.scratch[scores + index] = arena.records[record + REWARD];
+					arena.scratch[childRecords + index] = record;
+					arena.scratch[childBlocks + index] = start;
+				}
+
+				if (bounded) {
+					ChildSequenceAlignment.fillRow(arena.scratch, previousRow, row, nChildrenB,
+							scores + indexA * nChildrenB);
+					int swap = previousRow;
+					previousRow = row;
+					row = swap;
+					// The remaining children of a can add at most the match reward for each node
+					remainingNodesA -= countNodes(childA);
+					if (reward + arena.scratch[previousRow + nChildrenB] +
+							matchReward * remainingNodesA <= bound) {
+						release(arena, scratchMark, recordsMark);
+						return NO_RECORD;
+					}
+				}
+			}
 		}
 
-		int[][] matrix = new int[nChildrenA + 1][nChildrenB + 1];
+		int pairs = ChildSequenceAlignment.align(arena, nChildrenA, nChildrenB, scores);
+		int nMatched = arena.scratch[pairs];
+		// The offsets of the matched pairs' records, from first to last
+		int matchedRecords = arena.allocateScratch(nMatched);
+		int childReward = 0;
+		int[] scratch = arena.scratch;
+		int end = recordsMark;
+		for (int i = 0; i < nMatched; i++) {
+			int pair = pairs + 1 + (nMatched - 1 - i) * 2;
+			int index = scratch[pair] * nChildrenB + scratch[pair + 1];
+			int record = scratch[childRecords + index], start = scratch[childBlocks + index];
+			int length = recordEnd(arena.records, record) - start;
+			System.arraycopy(arena.records, start, arena.records, end, length);
+			scratch[matchedRecords + i] = record - (start - end);
+			end += length;
+			childReward += scratch[scores + index];
+//			System.out.printf("\tPaired %s[%d] with %s[%d]\n",
+//					childrenA.get(scratch[pair]).type, scratch[pair],
+//					childrenB.get(scratch[pair + 1]).type, scratch[pair + 1]);
+		}
+		arena.recordsTop = end;
 
-		for (int indexA = 1; indexA <= nChildrenA; indexA++) {
-			ASTNode childA = childrenA.get(indexA - 1);
-			for (int indexB = 1; indexB <= nChildrenB; indexB++) {
-				ASTNode childB = childrenB.get(indexB - 1);
+		return addMatchedRecord(arena, childReward + reward, pairs, matchedRecords, scratchMark);
+	}
 
-				int pairReward = align(childA, childB, null);
-				int best = Math.max(Math.max(
-						matrix[indexA - 1][indexB],
-						matrix[indexA][indexB - 1]),
-						matrix[indexA - 1][indexB - 1] + pairReward);
-				matrix[indexA][indexB] = best;
+	/**
+	 * Aligns a pair of subtrees whose child matrix is too large to fill in full, like
+	 * {@link #alignPair(AlignmentArena, ASTNode, ASTNode, int, Map)}. Rather than keeping the
+	 * score and records of every pair of children, the child matrix is scored one row at a time,
+	 * with {@link #scorePair(AlignmentArena, ASTNode, ASTNode, Map)}, which adds no records, and
+	 * only the pairs chosen by the traceback are then aligned in full. So apart from the memo of
+	 * WideRowScores, this uses space linear in the number of children, and no pair is aligned in
+	 * full more than once.
+	 */
+	private int alignWidePair(AlignmentArena arena, ASTNode a, ASTNode b, int reward, int bound,
+			Map<String, ASTNode> ids, int rowRanges, int scratchMark, int recordsMark) {
+		List<ASTNode> childrenA = a.children(), childrenB = b.children();
+		int nChildrenA = childrenA.size(), nChildrenB = childrenB.size();
+		WideRowScores rowScores = new WideRowScores(arena, childrenA, childrenB, ids, rowRanges);
+
+		if (bound != NO_BOUND) {
+			// As in alignPair, but the rows are scored and filled without keeping the scores
+			int rowMark = arena.scratchTop;
+			int previousRow = arena.allocateScratch(nChildrenB + 1);
+			int row = arena.allocateScratch(nChildrenB + 1);
+			int scores = arena.allocateScratch(nChildrenB);
+			Arrays.fill(arena.scratch, previousRow, previousRow + nChildrenB + 1, 0);
+			int remainingNodesA = countNodes(a) - 1;
+			for (int indexA = 0; indexA < nChildrenA; indexA++) {
+				rowScores.score(arena, indexA, nChildrenB, scores);
+				ChildSequenceAlignment.fillRow(arena.scratch, previousRow, row, nChildrenB,
+						scores);
+				int swap = previousRow;
+				previousRow = row;
+				row = swap;
+				remainingNodesA -= countNodes(childrenA.get(indexA));
+				if (reward + arena.scratch[previousRow + nChildrenB] +
+						matchReward * remainingNodesA <= bound) {
+					release(arena, scratchMark, recordsMark);
+					return NO_RECORD;
+				}
 			}
+			arena.scratchTop = rowMark;
+		}
+
+		int pairs = ChildSequenceAlignment.align(arena, nChildrenA, nChildrenB, rowScores);
+		int nMatched = arena.scratch[pairs];
+		// The offsets of the matched pairs' records, from first to last
+		int matchedRecords = arena.allocateScratch(nMatched);
+		int childReward = 0;
+		for (int i = 0; i < nMatched; i++) {
+			int pair = pairs + 1 + (nMatched - 1 - i) * 2;
+			int indexA = arena.scratch[pair], indexB = arena.scratch[pair + 1];
+			int record = alignPair(arena, childrenA.get(indexA), childrenB.get(indexB),
+					NO_BOUND, ids);
+			arena.scratch[matchedRecords + i] = record;
+			childReward += arena.records[record + REWARD];
 		}
 
-//		System.out.println("Matching: " + a + " and " + b);
-//		for (int[] row : matrix) System.out.println(Arrays.toString(row));
+		return addMatchedRecord(arena, childReward + reward, pairs, matchedRecords, scratchMark);
+	}
 
-		int indexA = nChildrenA, indexB = nChildrenB;
-		while (indexA > 0 && indexB > 0) {
-			int r = matrix[indexA][indexB];
-			if (r == matrix[indexA - 1][indexB]) {
-				indexA--;
-				continue;
+	/**
+	 * Scores the rows of a wide child matrix for alignWidePair. The traceback may score a row
+	 * more than once, so the scores of pairs of large children, which are the most costly to
+	 * score, are kept in a memo on the scratch stack. Each large child has at least
+	 * {@link CodeAlignment#LARGE_CHILD_NODES} nodes, so the memo has no more cells than the
+	 * number of pairs of nodes in the two subtrees divided by the square of that.
+	 */
+	private class WideRowScores implements ChildSequenceAlignment.RowScores {
+		private final List<ASTNode> childrenA, childrenB;
+		private final Map<String, ASTNode> ids;
+		private final int rowRanges;
+		// The offsets of the large children's numbers, and of the memo of their scores
+		private final int largeA, largeB, memo;
+		private final int nLargeB;
+
+		WideRowScores(AlignmentArena arena, List<ASTNode> childrenA, List<ASTNode> childrenB,
+				Map<String, ASTNode> ids, int rowRanges) {
+			this.childrenA = childrenA;
+			this.childrenB = childrenB;
+			this.ids = ids;
+			this.rowRanges = rowRanges;
+			largeA = numberLargeChildren(arena, childrenA);
+			largeB = numberLargeChildren(arena, childrenB);
+			int nLargeA = arena.scratch[largeA + childrenA.size()];
+			nLargeB = arena.scratch[largeB + childrenB.size()];
+			memo = arena.allocateScratch(nLargeA * nLargeB);
+			Arrays.fill(arena.scratch, memo, memo + nLargeA * nLargeB, UNSCORED);
+		}
+
+		@Override
+		public void score(AlignmentArena arena, int indexA, int count, int row) {
+			ASTNode childA = childrenA.get(indexA);
+			int fromB = rangeStart(arena, rowRanges, indexA);
+			int toB = rangeEnd(arena, rowRanges, indexA, childrenB.size());
+			int numberA = arena.scratch[largeA + indexA];
+			if (numberA == -1 || nLargeB == 0) {
+				scoreRow(arena, childA, childrenB, ids, fromB, toB, count, row);
+				return;
 			}
-			if (r == matrix[indexA][indexB - 1]) {
-				indexB--;
-				continue;
+			int memoRow = memo + numberA * nLargeB;
+			for (int indexB = 0; indexB < count; indexB++) {
+				int score = NO_PAIR_SCORE;
+				if (indexB >= fromB && indexB < toB) {
+					int numberB = arena.scratch[largeB + indexB];
+					score = numberB == -1 ? UNSCORED : arena.scratch[memoRow + numberB];
+					if (score == UNSCORED) {
+						score = scorePair(arena, childA, childrenB.get(indexB), ids);
+						if (numberB != -1) arena.scratch[memoRow + numberB] = score;
+					}
+				}
+				arena.scratch[row + indexB] = score;
 			}
-			if (mapping != null) {
-				ASTNode childA = childrenA.get(indexA - 1);
-				ASTNode childB = childrenB.get(indexB - 1);
-				align(childA, childB, mapping);
-//				System.out.printf("\tPaired %s[%d] with %s[%d] for %d\n",
-//						childrenA.get(indexA - 1).type, indexA - 1,
-//						childrenB.get(indexB - 1).type, indexB - 1,
-//						r - matrix[indexA - 1][indexB - 1]);
+		}
+	}
+
+	/**
+	 * Returns the offset of an array on the scratch stack that gives the number of each of the
+	 * given children with at least {@link CodeAlignment#LARGE_CHILD_NODES} nodes, counting from
+	 * 0, or -1 for the other children, followed by the number of large children.
+	 */
+	private static int numberLargeChildren(AlignmentArena arena, List<ASTNode> children) {
+		int numbers = arena.allocateScratch(children.size() + 1);
+		int nLarge = 0;
+		for (int i = 0; i < children.size(); i++) {
+			boolean large = countNodes(children.get(i)) >= LARGE_CHILD_NODES;
+			arena.scratch[numbers + i] = large ? nLarge++ : -1;
+		}
+		arena.scratch[numbers + children.size()] = nLarge;
+		return numbers;
+	}
+
+	/**
+	 * Adds the record of a pair of subtrees whose children were paired as given by pairs (see
+	 * {@link ChildSequenceAlignment#align(AlignmentArena, int, int, int)}), where the records of
+	 * the matched pairs are at the given offsets, and releases the scratch above scratchMark.
+	 */
+	private static int addMatchedRecord(AlignmentArena arena, int reward, int pairs,
+			int matchedRecords, int scratchMark) {
+		int nMatched = arena.scratch[pairs];
+		int record = addRecord(arena, reward, 0, nMatched);
+		int[] scratch = arena.scratch, records = arena.records;
+		for (int i = 0; i < nMatched; i++) {
+			int pair = pairs + 1 + (nMatched - 1 - i) * 2;
+			int match = record + MATCHED + i * MATCH_SIZE;
+			records[match] = scratch[pair];
+			records[match + 1] = scratch[pair + 1];
+			records[match + 2] = record - scratch[matchedRecords + i];
+		}
+		arena.scratchTop = scratchMark;
+		return record;
+	}
+
+	/**
+	 * Returns the reward of aligning the given pair of subtrees, exactly as
+	 * {@link #alignPair(AlignmentArena, ASTNode, ASTNode, int, Map)} would, but without adding any
+	 * records or tracing back any child matrix. Only two rows of each child matrix are kept, so
+	 * the scratch used is linear in the number of children at each level.
+	 */
+	private int scorePair(AlignmentArena arena, ASTNode a, ASTNode b, Map<String, ASTNode> ids) {
+		if (a == null) return b == null ? matchReward : 0;
+
+		if (canPairIdenticalSubtrees() && a.structuralHash() == b.structuralHash() &&
+				a.equals(b, false, false)) {
+			return matchReward * countNodes(a);
+		}
+
+		int reward = matchReward;
+		if (!a.shallowEquals(b, false)) reward -= renamePenalty;
+
+		List<ASTNode> childrenA = a.children();
+		List<ASTNode> childrenB = b.children();
+
+		int nChildrenA = childrenA.size();
+		int nChildrenB = childrenB.size();
+
+		if (nChildrenA == 0 || nChildrenB == 0) return reward;
+
+		int scratchMark = arena.scratchTop;
+		int rowRanges = ids == null ? NO_RECORD : findAnchors(arena, childrenA, b, ids);
+		int previousRow = arena.allocateScratch(nChildrenB + 1);
+		int row = arena.allocateScratch(nChildrenB + 1);
+		int scores = arena.allocateScratch(nChildrenB);
+		Arrays.fill(arena.scratch, previousRow, previousRow + nChildrenB + 1, 0);
+		for (int indexA = 0; indexA < nChildrenA; indexA++) {
+			scoreRow(arena, childrenA.get(indexA), childrenB, ids,
+					rangeStart(arena, rowRanges, indexA),
+					rangeEnd(arena, rowRanges, indexA, nChildrenB), nChildrenB, scores);
+			ChildSequenceAlignment.fillRow(arena.scratch, previousRow, row, nChildrenB, scores);
+			int swap = previousRow;
+			previousRow = row;
+			row = swap;
+		}
+		int childReward = arena.scratch[previousRow + nChildrenB];
+		arena.scratchTop = scratchMark;
+		return childReward + reward;
+	}
+
+	/**
+	 * Writes the rewards of pairing childA with each of the first count children of b to
+	 * arena.scratch, starting at offset row, where only the children in [fromB, toB) may be
+	 * paired. Large rows are scored in parallel, if this CodeAlignment has a pool.
+	 */
+	private void scoreRow(AlignmentArena arena, ASTNode childA, List<ASTNode> childrenB,
+			Map<String, ASTNode> ids, int fromB, int toB, int count, int row) {
+		toB = Math.min(toB, count);
+		if (fromB < toB && usesParallel(1, toB - fromB)) {
+			scoreRowInParallel(arena, childA, childrenB, ids, fromB, toB, count, row);
+			return;
+		}
+		for (int indexB = 0; indexB < count; indexB++) {
+			int score = NO_PAIR_SCORE;
+			if (indexB >= fromB && indexB < toB) {
+				score = scorePair(arena, childA, childrenB.get(indexB), ids);
 			}
-			indexA--; indexB--;
+			// The arena may have grown while scoring, so we only read its array now
+			arena.scratch[row + indexB] = score;
 		}
-//		System.out.println();
+	}
 
-		return matrix[nChildrenA][nChildrenB] + reward;
+	/**
+	 * Scores the pairs in a row as one task for each of the pool's threads, since the rows of a
+	 * wide child matrix are filled one at a time.
+	 */
+	private void scoreRowInParallel(AlignmentArena arena, ASTNode childA,
+			List<ASTNode> childrenB, Map<String, ASTNode> ids, int fromB, int toB, int count,
+			int row) {
+		int nTasks = Math.min(pool.getParallelism(), toB - fromB);
+		List<ForkJoinTask<int[]>> tasks = new ArrayList<>(nTasks);
+		for (int i = 0; i < nTasks; i++) {
+			int start = fromB + (int) ((long) (toB - fromB) * i / nTasks);
+			int end = fromB + (int) ((long) (toB - fromB) * (i + 1) / nTasks);
+			tasks.add(ForkJoinTask.adapt(() -> {
+				// Tasks always use their thread's arena, as in ChildPairTask
+				AlignmentArena taskArena = AlignmentArena.forCurrentThread();
+				int[] scores = new int[end - start];
+				for (int indexB = start; indexB < end; indexB++) {
+					scores[indexB - start] =
+							scorePair(taskArena, childA, childrenB.get(indexB), ids);
+				}
+				taskArena.trim();
+				return scores;
+			}));
+		}
+		invokeAll(tasks);
+		Arrays.fill(arena.scratch, row, row + count, NO_PAIR_SCORE);
+		int indexB = fromB;
+		for (ForkJoinTask<int[]> task : tasks) {
+			int[] scores = task.join();
+			System.arraycopy(scores, 0, arena.scratch, row + indexB, scores.length);
+			indexB += scores.length;
+		}
 	}
 }
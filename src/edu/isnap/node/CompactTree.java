@@ -0,0 +1,307 @@
+package edu.isnap.node;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A read-only, flattened copy of an AST, stored as primitive arrays indexed by each node's
+ * post-order position, so that the nodes of a subtree always occupy a contiguous range ending at
+ * the subtree's root. Types and values are stored as ids in a {@link SymbolTable}, which should be
+ * shared between any trees that will be compared.
+ *
+ * The children of each node are also stored in order in one flat array, starting at the node's
+ * child offset, so any child can be found in constant time.
+ *
+ * Each CompactTree object is a view of one node in these arrays. Views are created on demand and
+ * cached, so that each node has exactly one view, but algorithms that need to process many trees
+ * (e.g. {@link CodeAlignment#align(CompactTree, CompactTree)}) should work with positions instead.
+ */
+public class CompactTree implements INode {
+
+	/**
+	 * The type id used for null children, which are kept as placeholders, like in ASTNode.
+	 */
+	public final static int NULL_TYPE = -2;
+
+	private final Data data;
+	private final int position;
+	private List<CompactTree> children;
+
+	private static class Data {
+		final SymbolTable symbols;
+		final int[] types, values, parents, firstChildren, nextSiblings, childCounts, sizes,
+			hashes, childOffsets;
+		// The positions of the children of each node, in order, starting at its child offset
+		final int[] childPositions;
+		final String[] ids;
+		final CompactTree[] views;
+
+		Data(SymbolTable symbols, int nNodes) {
+			this.symbols = symbols;
+			types = new int[nNodes];
+			values = new int[nNodes];
+			parents = new int[nNodes];
+			firstChildren = new int[nNodes];
+			nextSiblings = new int[nNodes];
+			childCounts = new int[nNodes];
+			sizes = new int[nNodes];
+			hashes = new int[nNodes];
+			childOffsets = new int[nNodes];
+			// Every node but the root is the child of exactly one node
+			childPositions = new int[Math.max(0, nNodes - 1)];
+			ids = new String[nNodes];
+			views = new CompactTree[nNodes];
+		}
+	}
+
+	private CompactTree(Data data, int position) {
+		this.data = data;
+		this.position = position;
+	}
+
+	/**
+	 * Creates a CompactTree copy of the given AST, using the given SymbolTable to assign ids to
+	 * its types and values. Returns a view of the root.
+	 */
+	public static CompactTree fromAST(ASTNode root, SymbolTable symbols) {
+		// Both passes use an explicit stack, so deep ASTs cannot overflow the call stack
+		int[] nNodes = new int[1];
+		TreeWalker.walk(root, (ASTNode node, int index, int depth) -> {
+			nNodes[0]++;
+			return true;
+		});
+		Data data = new Data(symbols, nNodes[0]);
+		Builder builder = new Builder(data);
+		TreeWalker.walk(root, builder);
+		int rootPosition = builder.lastPosition;
+		data.parents[rootPosition] = -1;
+		data.nextSiblings[rootPosition] = -1;
+		return node(data, rootPosition);
+	}
+
+	/**
+	 * Adds each node to the arrays as it is exited, so nodes are added in post-order. The
+	 * children of the node at each depth of the current path are linked and summed as they are
+	 * added, and are then given to that node when it is exited.
+	 */
+	private static class Builder implements TreeWalker.Visitor<ASTNode> {
+		private final Data data;
+		private int nextPosition, lastPosition, nextChildOffset;
+		// For the node at each depth of the current path, its first and last child so far, and
+		// the number, total size and combined hash of its children so far
+		private int[] firstChildren = new int[16], lastChildren = new int[16],
+				childCounts = new int[16], sizes = new int[16], hashes = new int[16];
+
+		Builder(Data data) {
+			this.data = data;
+		}
+
+		@Override
+		public boolean enter(ASTNode node, int index, int depth) {
+			if (depth == firstChildren.length) {
+				int length = depth * 2;
+				firstChildren = Arrays.copyOf(firstChildren, length);
+				lastChildren = Arrays.copyOf(lastChildren, length);
+				childCounts = Arrays.copyOf(childCounts, length);
+				sizes = Arrays.copyOf(sizes, length);
+				hashes = Arrays.copyOf(hashes, length);
+			}
+			firstChildren[depth] = -1;
+			lastChildren[depth] = -1;
+			childCounts[depth] = 0;
+			sizes[depth] = 1;
+			hashes[depth] = 1;
+			return true;
+		}
+
+		@Override
+		public void exit(ASTNode node, int index, int depth) {
+			int firstChild = firstChildren[depth], lastChild = lastChildren[depth];
+			if (lastChild != -1) data.nextSiblings[lastChild] = -1;
+			int position = nextPosition++;
+			data.childOffsets[position] = nextChildOffset;
+			for (int child = firstChild; child != -1; child = data.nextSiblings[child]) {
+				data.parents[child] = position;
+				data.childPositions[nextChildOffset++] = child;
+			}
+
+			int type, value;
+			if (node == null) {
+				type = NULL_TYPE;
+				value = SymbolTable.NONE;
+			} else if (node.symbols() == data.symbols) {
+				// The node was already interned in this table, so we can reuse its ids
+				type = node.typeID();
+				value = node.valueID();
+			} else {
+				type = data.symbols.id(node.type);
+				value = data.symbols.id(node.value);
+			}
+			data.types[position] = type;
+			data.values[position] = value;
+			data.ids[position] = node == null ? null : node.id;
+			data.firstChildren[position] = firstChild;
+			data.childCounts[position] = childCounts[depth];
+			data.sizes[position] = sizes[depth];
+			data.hashes[position] = (hashes[depth] * 31 + type) * 31 + value;
+			lastPosition = position;
+
+			if (depth == 0) return;
+			int parent = depth - 1;
+			if (lastChildren[parent] == -1) firstChildren[parent] = position;
+			else data.nextSiblings[lastChildren[parent]] = position;
+			lastChildren[parent] = position;
+			childCounts[parent]++;
+			sizes[parent] += data.sizes[position];
+			hashes[parent] = 31 * hashes[parent] + data.hashes[position];
+		}
+	}
+
+	private static CompactTree node(Data data, int position) {
+		if (position < 0 || data.types[position] == NULL_TYPE) return null;
+		CompactTree view = data.views[position];
+		if (view == null) view = data.views[position] = new CompactTree(data, position);
+		return view;
+	}
+
+	/** Returns a view of the node at the given position in this tree's arrays. */
+	public CompactTree node(int position) {
+		return node(data, position);
+	}
+
+	/** Returns this node's post-order position in the arrays of its tree. */
+	public int position() {
+		return position;
+	}
+
+	public SymbolTable symbols() {
+		return data.symbols;
+	}
+
+	/** Returns the number of nodes in the whole tree (including null placeholders). */
+	public int nodeCount() {
+		return data.types.length;
+	}
+
+	public int typeID(int position) {
+		return data.types[position];
+	}
+
+	public int valueID(int position) {
+		return data.values[position];
+	}
+
+	public int parent(int position) {
+		return data.parents[position];
+	}
+
+	public int firstChild(int position) {
+		return data.firstChildren[position];
+	}
+
+	public int nextSibling(int position) {
+		return data.nextSiblings[position];
+	}
+
+	public int childCount(int position) {
+		return data.childCounts[position];
+	}
+
+	/** Returns the position of the child at the given index of the node at the given position. */
+	public int child(int position, int index) {
+		if (index < 0 || index >= data.childCounts[position]) {
+			throw new IndexOutOfBoundsException();
+		}
+		return data.childPositions[data.childOffsets[position] + index];
+	}
+
+	/**
+	 * Returns the size of the subtree rooted at the given position (including null placeholders).
+	 * This subtree occupies the positions [position - size + 1, position].
+	 */
+	public int subtreeSize(int position) {
+		return data.sizes[position];
+	}
+
+	/**
+	 * Returns a hash of the subtree rooted at the given position, computed from the type and value
+	 * ids of its nodes and its structure. Identical subtrees in trees that share a SymbolTable
+	 * have the same hash.
+	 */
+	public int subtreeHash(int position) {
+		return data.hashes[position];
+	}
+
+	/**
+	 * Returns true if the subtrees rooted at positionA in treeA and positionB in treeB have the
+	 * same structure, types and values (but not necessarily ids), comparing the arrays directly.
+	 * The trees must share a SymbolTable.
+	 */
+	public static boolean subtreesEqual(CompactTree treeA, int positionA,
+			CompactTree treeB, int positionB) {
+		Data a = treeA.data, b = treeB.data;
+		int size = a.sizes[positionA];
+		if (size != b.sizes[positionB] || a.hashes[positionA] != b.hashes[positionB]) return false;
+		int startA = positionA - size + 1, startB = positionB - size + 1;
+		for (int i = 0; i < size; i++) {
+			// In post-order, the sequence of subtree sizes uniquely determines the tree's structure
+			if (a.sizes[startA + i] != b.sizes[startB + i] ||
+					a.types[startA + i] != b.types[startB + i] ||
+					a.values[startA + i] != b.values[startB + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String type() {
+		return data.symbols.symbol(data.types[position]);
+	}
+
+	@Override
+	public String value() {
+		return data.symbols.symbol(data.values[position]);
+	}
+
+	@Override
+	public String id() {
+		return data.ids[position];
+	}
+
+	@Override
+	public CompactTree parent() {
+		return node(data.parents[position]);
+	}
+
+	@Override
+	public List<CompactTree> children() {
+		// The list is a view of the arrays, so it is created once for each node
+		if (children != null) return children;
+		return children = new AbstractList<CompactTree>() {
+			@Override
+			public CompactTree get(int index) {
+				return node(child(position, index));
+			}
+
+			@Override
+			public int size() {
+				return data.childCounts[position];
+			}
+		};
+	}
+
+	@Override
+	public int treeSize() {
+		return data.sizes[position];
+	}
+
+	@Override
+	public String toString() {
+		PrettyPrint.Params params = new PrettyPrint.Params();
+		params.showValues = false;
+		params.backquoteValuesWithWhitespace = false;
+		return PrettyPrint.toString(this, params);
+	}
+}
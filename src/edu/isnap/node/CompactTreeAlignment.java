@@ -0,0 +1,143 @@
+package edu.isnap.node;
+
+import edu.isnap.node.CodeAlignment.IndexPairs;
+
+/**
+ * Implements {@link CodeAlignment#align(CompactTree, CompactTree)}, working directly on node
+ * positions and ids, rather than node objects.
+ *
+ * Like the ASTNode alignment, each pair of subtrees is scored once, and its traceback is resolved
+ * immediately. The result for each pair is stored as a record in a flat int array: the positions
+ * of the pair, its reward, whether the subtrees are identical, and the offsets of the records of
+ * the matched child pairs. Building the final pairing then only follows these records. Records
+ * and child matrices are kept in an {@link AlignmentArena}, which is released after aligning.
+ */
+class CompactTreeAlignment {
+
+	private final static int POSITION_A = 0, POSITION_B = 1, REWARD = 2, FLAGS = 3, N_MATCHED = 4,
+			MATCHED = 5;
+	private final static int FLAG_IDENTICAL = 1, FLAG_NULL = 2;
+
+	private final int matchReward, renamePenalty;
+	private final CompactTree a, b;
+	private final AlignmentArena arena;
+
+	CompactTreeAlignment(int matchReward, int renamePenalty, CompactTree a, CompactTree b,
+			AlignmentArena arena) {
+		if (a.symbols() != b.symbols()) {
+			throw new IllegalArgumentException("CompactTrees must share a SymbolTable");
+		}
+		this.matchReward = matchReward;
+		this.renamePenalty = renamePenalty;
+		this.a = a;
+		this.b = b;
+		this.arena = arena;
+	}
+
+	IndexPairs align() {
+		int scratchMark = arena.scratchTop, recordsMark = arena.recordsTop;
+		try {
+			int record = alignPair(a.position(), b.position());
+			IndexPairs pairs = new IndexPairs(a.nodeCount(), b.nodeCount(),
+					arena.records[record + REWARD]);
+			addTo(record, pairs);
+			return pairs;
+		} finally {
+			arena.scratchTop = scratchMark;
+			arena.recordsTop = recordsMark;
+			arena.trim();
+		}
+	}
+
+	private int addRecord(int positionA, int positionB, int reward, int flags, int nMatched) {
+		int record = arena.allocateRecord(MATCHED + nMatched);
+		int[] records = arena.records;
+		records[record + POSITION_A] = positionA;
+		records[record + POSITION_B] = positionB;
+		records[record + REWARD] = reward;
+		records[record + FLAGS] = flags;
+		records[record + N_MATCHED] = nMatched;
+		return record;
+	}
+
+	private void addTo(int record, IndexPairs pairs) {
+		int[] records = arena.records;
+		int flags = records[record + FLAGS];
+		if ((flags & FLAG_NULL) != 0) return;
+		int positionA = records[record + POSITION_A], positionB = records[record + POSITION_B];
+		if ((flags & FLAG_IDENTICAL) != 0) {
+			// Identical subtrees occupy the same relative positions in post-order
+			int subtreeSize = a.subtreeSize(positionA);
+			for (int i = 0; i < subtreeSize; i++) {
+				int pairA = positionA - i, pairB = positionB - i;
+				if (a.typeID(pairA) != CompactTree.NULL_TYPE) pairs.put(pairA, pairB);
+			}
+			return;
+		}
+		pairs.put(positionA, positionB);
+		int nMatched = records[record + N_MATCHED];
+		for (int i = 0; i < nMatched; i++) {
+			addTo(records[record + MATCHED + i], pairs);
+		}
+	}
+
+	private int alignPair(int positionA, int positionB) {
+		// Note: the arena may grow during any call that adds records, so we always access its
+		// arrays through the arena
+		if (a.typeID(positionA) == CompactTree.NULL_TYPE) {
+			int reward = b.typeID(positionB) == CompactTree.NULL_TYPE ? matchReward : 0;
+			return addRecord(positionA, positionB, reward, FLAG_NULL, 0);
+		}
+
+		// See CodeAlignment#canPairIdenticalSubtrees()
+		if (matchReward > 0 && renamePenalty >= 0 &&
+				CompactTree.subtreesEqual(a, positionA, b, positionB)) {
+			return addRecord(positionA, positionB, matchReward * a.subtreeSize(positionA),
+					FLAG_IDENTICAL, 0);
+		}
+
+		int reward = matchReward;
+		if (a.typeID(positionA) != b.typeID(positionB) ||
+				a.valueID(positionA) != b.valueID(positionB)) {
+			reward -= renamePenalty;
+		}
+
+		int nChildrenA = a.childCount(positionA);
+		int nChildrenB = b.childCount(positionB);
+
+		if (nChildrenA == 0 || nChildrenB == 0) {
+			return addRecord(positionA, positionB, reward, 0, 0);
+		}
+
+		int scratchMark = arena.scratchTop;
+		int nPairs = nChildrenA * nChildrenB;
+		int scores = arena.allocateScratch(nPairs), childRecords = arena.allocateScratch(nPairs);
+		int index = 0;
+		for (int childA = a.firstChild(positionA); childA != -1; childA = a.nextSibling(childA)) {
+			for (int childB = b.firstChild(positionB); childB != -1;
+					childB = b.nextSibling(childB)) {
+				int childRecord = alignPair(childA, childB);
+				arena.scratch[childRecords + index] = childRecord;
+				arena.scratch[scores + index++] = arena.records[childRecord + REWARD];
+			}
+		}
+
+		int pairs = ChildSequenceAlignment.align(arena, nChildrenA, nChildrenB, scores);
+		int nMatched = arena.scratch[pairs];
+		int childReward = 0;
+		for (int i = 0; i < nMatched; i++) {
+			int pair = pairs + 1 + i * 2;
+			childReward += arena.scratch[scores + arena.scratch[pair] * nChildrenB +
+					arena.scratch[pair + 1]];
+		}
+		int record = addRecord(positionA, positionB, childReward + reward, 0, nMatched);
+		int[] scratch = arena.scratch, records = arena.records;
+		for (int i = 0; i < nMatched; i++) {
+			int pair = pairs + 1 + i * 2;
+			records[record + MATCHED + i] =
+					scratch[childRecords + scratch[pair] * nChildrenB + scratch[pair + 1]];
+		}
+		arena.scratchTop = scratchMark;
+		return record;
+	}
+}
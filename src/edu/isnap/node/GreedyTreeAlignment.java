@@ -0,0 +1,340 @@
+package edu.isnap.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import edu.isnap.node.CodeAlignment.NodePairs;
+
+/**
+ * A fast, approximate aligner for large ASTs, in the style of GumTree (Falleri et al., 2014). It
+ * does not fill a child matrix for every pair of subtrees, so it scales to ASTs with thousands of
+ * nodes, but it may pair fewer nodes than {@link CodeAlignment}. It works in two passes:
+ * <ul>
+ * <li>Top-down: identical subtrees are paired, starting with the tallest. If a subtree has more
+ * than one identical counterpart, the pair whose parents have the most similar descendants is
+ * chosen.</li>
+ * <li>Bottom-up: each unpaired node is paired with the unpaired node of the same type whose
+ * descendants are paired with the largest share of its own (its "container"), if that share is
+ * large enough. The remaining descendants of small paired nodes are then aligned exactly, with a
+ * CodeAlignment.</li>
+ * </ul>
+ * The reward of a pairing is the sum of the rewards of the paired nodes: the match reward, minus
+ * the rename penalty if they differ. Null children are never paired.
+ */
+public class GreedyTreeAlignment implements TreeAligner {
+
+	/**
+	 * A suggested size above which the exact alignment may be replaced with this one, if a
+	 * RatingConfig opts into it.
+	 */
+	public final static int DEFAULT_SIZE_THRESHOLD = 1000;
+
+	/** Identical subtrees shorter than this are left for the bottom-up pass. */
+	public final static int MIN_HEIGHT = 2;
+	/** The share of descendants two nodes must have paired to be paired in the bottom-up pass. */
+	public final static double MIN_DICE = 0.5;
+	/** The largest subtree whose remaining descendants are aligned exactly. */
+	public final static int MAX_RECOVERY_SIZE = 100;
+
+	private final int matchReward, renamePenalty;
+	private final CodeAlignment recovery;
+
+	public GreedyTreeAlignment(int matchReward, int renamePenalty) {
+		this.matchReward = matchReward;
+		this.renamePenalty = renamePenalty;
+		this.recovery = new CodeAlignment(matchReward, renamePenalty);
+	}
+
+	@Override
+	public NodePairs align(ASTNode a, ASTNode b) {
+		return new Alignment(a, b).align();
+	}
+
+	/** The non-null nodes of a tree in post-order, so each subtree is a contiguous range. */
+	private static class PostOrder {
+		final List<ASTNode> nodes = new ArrayList<>();
+		final Map<ASTNode, Integer> positions = new IdentityHashMap<>();
+		final int[] parents, sizes, heights;
+
+		PostOrder(ASTNode root) {
+			// TreeWalker uses an explicit stack, so deep ASTs cannot overflow the call stack
+			TreeWalker.postOrder(root, node -> {
+				positions.put(node, nodes.size());
+				nodes.add(node);
+			});
+			int nNodes = nodes.size();
+			parents = new int[nNodes];
+			sizes = new int[nNodes];
+			heights = new int[nNodes];
+			Arrays.fill(parents, -1);
+			// Each node's children come before it, so their sizes and heights are complete
+			for (int position = 0; position < nNodes; position++) {
+				int size = 1, height = 1;
+				for (ASTNode child : nodes.get(position).children()) {
+					if (child == null) continue;
+					int childPosition = positions.get(child);
+					parents[childPosition] = position;
+					size += sizes[childPosition];
+					height = Math.max(height, heights[childPosition] + 1);
+				}
+				sizes[position] = size;
+				heights[position] = height;
+			}
+		}
+
+		int size() {
+			return nodes.size();
+		}
+
+		int root() {
+			return nodes.size() - 1;
+		}
+
+		/** Returns the first position of the given node's subtree. */
+		int start(int position) {
+			return position - sizes[position] + 1;
+		}
+
+		boolean isDescendant(int position, int ancestor) {
+			return position >= start(ancestor) && position < ancestor;
+		}
+
+		List<Integer> children(int position) {
+			List<Integer> children = new ArrayList<>();
+			for (ASTNode child : nodes.get(position).children()) {
+				if (child != null) children.add(positions.get(child));
+			}
+			return children;
+		}
+	}
+
+	private class Alignment {
+		private final PostOrder a, b;
+		private final int[] pairsA, pairsB;
+
+		Alignment(ASTNode rootA, ASTNode rootB) {
+			a = new PostOrder(rootA);
+			b = new PostOrder(rootB);
+			pairsA = new int[a.size()];
+			pairsB = new int[b.size()];
+			Arrays.fill(pairsA, -1);
+			Arrays.fill(pairsB, -1);
+		}
+
+		NodePairs align() {
+			matchTopDown();
+			matchBottomUp();
+
+			NodePairs mapping = new NodePairs();
+			for (int i = 0; i < pairsA.length; i++) {
+				if (pairsA[i] == -1) continue;
+				ASTNode nodeA = a.nodes.get(i), nodeB = b.nodes.get(pairsA[i]);
+				mapping.put(nodeA, nodeB);
+				mapping.reward += nodeA.shallowEquals(nodeB, false) ?
+						matchReward : matchReward - renamePenalty;
+			}
+			return mapping;
+		}
+
+		private void pair(int positionA, int positionB) {
+			pairsA[positionA] = positionB;
+			pairsB[positionB] = positionA;
+		}
+
+		/** Pairs every node of two identical subtrees. */
+		private void pairIdentical(int positionA, int positionB) {
+			int size = a.sizes[positionA];
+			for (int i = 0; i < size; i++) pair(positionA - i, positionB - i);
+		}
+
+		private boolean isIdentical(int positionA, int positionB) {
+			ASTNode nodeA = a.nodes.get(positionA), nodeB = b.nodes.get(positionB);
+			return nodeA.structuralHash() == nodeB.structuralHash() &&
+					nodeA.equals(nodeB, false, false);
+		}
+
+		/**
+		 * Returns the share of the descendants of the two nodes that are paired with each other
+		 * (the Dice coefficient).
+		 */
+		private double dice(int positionA, int positionB) {
+			if (positionA == -1 || positionB == -1) return 0;
+			int descendantsA = a.sizes[positionA] - 1;
+			int descendantsB = b.sizes[positionB] - 1;
+			if (descendantsA + descendantsB == 0) return 0;
+			int common = 0;
+			for (int i = a.start(positionA); i < positionA; i++) {
+				if (pairsA[i] != -1 && b.isDescendant(pairsA[i], positionB)) common++;
+			}
+			return 2.0 * common / (descendantsA + descendantsB);
+		}
+
+		private void matchTopDown() {
+			PriorityQueue<Integer> queueA = new PriorityQueue<>(byHeight(a)),
+					queueB = new PriorityQueue<>(byHeight(b));
+			queueA.add(a.root());
+			queueB.add(b.root());
+			List<int[]> candidates = new ArrayList<>();
+
+			while (!queueA.isEmpty() && !queueB.isEmpty()) {
+				int heightA = a.heights[queueA.peek()];
+				int heightB = b.heights[queueB.peek()];
+				if (Math.max(heightA, heightB) < MIN_HEIGHT) break;
+				if (heightA != heightB) {
+					// Open the taller nodes, since they can't match any node in the other tree
+					if (heightA > heightB) openAll(a, queueA, heightA);
+					else openAll(b, queueB, heightB);
+					continue;
+				}
+
+				List<Integer> nodesA = popAll(a, queueA, heightA);
+				List<Integer> nodesB = popAll(b, queueB, heightB);
+				Map<Integer, List<Integer>> byHashB = new HashMap<>();
+				for (int positionB : nodesB) {
+					byHashB.computeIfAbsent(b.nodes.get(positionB).structuralHash(),
+							k -> new ArrayList<>()).add(positionB);
+				}
+
+				Set<Integer> matchedB = new HashSet<>();
+				for (int positionA : nodesA) {
+					List<Integer> identical = new ArrayList<>();
+					List<Integer> sameHash = byHashB.get(a.nodes.get(positionA).structuralHash());
+					if (sameHash != null) {
+						for (int positionB : sameHash) {
+							// The roots are always paired with each other
+							if ((positionA == a.root()) != (positionB == b.root())) continue;
+							if (isIdentical(positionA, positionB)) identical.add(positionB);
+						}
+					}
+					if (identical.isEmpty()) {
+						open(a, queueA, positionA);
+						continue;
+					}
+					for (int positionB : identical) {
+						candidates.add(new int[] { positionA, positionB });
+						matchedB.add(positionB);
+					}
+				}
+				for (int positionB : nodesB) {
+					if (!matchedB.contains(positionB)) open(b, queueB, positionB);
+				}
+			}
+
+			// Pair unique candidates first, then ambiguous ones by the similarity of their parents
+			Map<Integer, Integer> countsA = new HashMap<>(), countsB = new HashMap<>();
+			for (int[] candidate : candidates) {
+				countsA.merge(candidate[0], 1, Integer::sum);
+				countsB.merge(candidate[1], 1, Integer::sum);
+			}
+			List<int[]> ambiguous = new ArrayList<>();
+			for (int[] candidate : candidates) {
+				if (countsA.get(candidate[0]) == 1 && countsB.get(candidate[1]) == 1) {
+					pairIdentical(candidate[0], candidate[1]);
+				} else {
+					ambiguous.add(candidate);
+				}
+			}
+			Map<int[], Double> similarity = new IdentityHashMap<>();
+			for (int[] candidate : ambiguous) {
+				similarity.put(candidate,
+						dice(a.parents[candidate[0]], b.parents[candidate[1]]));
+			}
+			// The sort is stable, so ties are broken by the order of the nodes
+			ambiguous.sort((x, y) -> Double.compare(similarity.get(y), similarity.get(x)));
+			for (int[] candidate : ambiguous) {
+				if (pairsA[candidate[0]] == -1 && pairsB[candidate[1]] == -1) {
+					pairIdentical(candidate[0], candidate[1]);
+				}
+			}
+		}
+
+		private Comparator<Integer> byHeight(PostOrder tree) {
+			// Tallest first, then in post-order
+			return (x, y) -> {
+				int c = Integer.compare(tree.heights[y], tree.heights[x]);
+				return c != 0 ? c : Integer.compare(x, y);
+			};
+		}
+
+		private List<Integer> popAll(PostOrder tree, PriorityQueue<Integer> queue, int height) {
+			List<Integer> nodes = new ArrayList<>();
+			while (!queue.isEmpty() && tree.heights[queue.peek()] == height) {
+				nodes.add(queue.poll());
+			}
+			return nodes;
+		}
+
+		private void openAll(PostOrder tree, PriorityQueue<Integer> queue, int height) {
+			for (int position : popAll(tree, queue, height)) open(tree, queue, position);
+		}
+
+		private void open(PostOrder tree, PriorityQueue<Integer> queue, int position) {
+			queue.addAll(tree.children(position));
+		}
+
+		private void matchBottomUp() {
+			int[] visited = new int[b.size()];
+			Arrays.fill(visited, -1);
+			for (int positionA = 0; positionA < a.size(); positionA++) {
+				if (positionA == a.root()) {
+					if (pairsA[positionA] == -1 && pairsB[b.root()] == -1) {
+						pair(positionA, b.root());
+					}
+					if (pairsA[positionA] == b.root()) recover(positionA, b.root());
+					continue;
+				}
+				if (pairsA[positionA] != -1 || a.sizes[positionA] == 1) continue;
+
+				// The candidates are the unpaired ancestors, with the same type, of the nodes
+				// paired with this node's descendants
+				String type = a.nodes.get(positionA).type;
+				int best = -1;
+				double bestDice = MIN_DICE;
+				for (int i = a.start(positionA); i < positionA; i++) {
+					if (pairsA[i] == -1) continue;
+					for (int ancestor = b.parents[pairsA[i]]; ancestor != -1;
+							ancestor = b.parents[ancestor]) {
+						if (visited[ancestor] == positionA) break;
+						visited[ancestor] = positionA;
+						if (ancestor == b.root() || pairsB[ancestor] != -1 ||
+								!type.equals(b.nodes.get(ancestor).type)) {
+							continue;
+						}
+						double dice = dice(positionA, ancestor);
+						if (dice > bestDice) {
+							best = ancestor;
+							bestDice = dice;
+						}
+					}
+				}
+				if (best != -1) {
+					pair(positionA, best);
+					recover(positionA, best);
+				}
+			}
+		}
+
+		/**
+		 * Aligns the subtrees of two paired nodes exactly, if they are small enough, and pairs any
+		 * nodes the exact alignment pairs that are still unpaired.
+		 */
+		private void recover(int positionA, int positionB) {
+			if (Math.max(a.sizes[positionA], b.sizes[positionB]) > MAX_RECOVERY_SIZE) {
+				return;
+			}
+			NodePairs pairs = recovery.align(a.nodes.get(positionA), b.nodes.get(positionB));
+			for (ASTNode nodeA : pairs.keysetFrom()) {
+				int pairA = a.positions.get(nodeA), pairB = b.positions.get(pairs.getFrom(nodeA));
+				if (pairsA[pairA] == -1 && pairsB[pairB] == -1) pair(pairA, pairB);
+			}
+		}
+	}
+}
@@ -39,15 +39,15 @@ public interface INode {
 	}
 
 	public default int treeSize() {
-		int size = 1;
-		for (INode child : children()) size += child.treeSize();
-		return size;
+		int[] size = new int[1];
+		TreeWalker.walk(this, (INode node, int index, int depth) -> {
+			size[0]++;
+			return true;
+		});
+		return size[0];
 	}
 
 	public static void recurse(INode node, Consumer<INode> action) {
-		action.accept(node);
-		for (INode child : node.children()) {
-			if (child != null) recurse(child, action);
-		}
+		TreeWalker.preOrder(node, action);
 	}
 }
@@ -0,0 +1,495 @@
+package edu.isnap.node;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.isnap.node.ASTNode.SourceLocation;
+
+/**
+ * Builds an {@link ASTNode} directly from JSON text in a single pass, without first building an
+ * org.json {@link JSONObject} tree. The result is the same as {@link ASTNode#parse(JSONObject)}:
+ * null children become {@link ASTNode#EMPTY_TYPE} nodes, source locations are read from
+ * "sourceStart" and "sourceEnd", and children are added in the order given by "childrenOrder",
+ * or, if it is missing, in the iteration order org.json would have used.
+ *
+ * Scalar fields of the root object that are not part of the AST (e.g. "isCorrect" or "weight")
+ * are kept and can be read using {@link JSONASTParser#rootProperties()} after parsing.
+ * Note: this class accepts standard JSON, rather than all the lenient syntax org.json accepts.
+ */
+public class JSONASTParser {
+
+	private final static int BUFFER_SIZE = 8192;
+
+	private final Reader reader;
+	private final SymbolTable symbols;
+	private final char[] buffer;
+	private int position, limit;
+
+	private final StringBuilder text = new StringBuilder();
+	private final JSONObject rootProperties = new JSONObject();
+
+	/**
+	 * Creates a parser that reads JSON from the given Reader, interning the AST's types, values
+	 * and child relations in the given SymbolTable, if it is not null.
+	 */
+	public JSONASTParser(Reader reader, SymbolTable symbols) {
+		this.reader = reader;
+		this.symbols = symbols;
+		buffer = new char[BUFFER_SIZE];
+	}
+
+	/**
+	 * Creates a parser that reads JSON from the given range of the given array, interning the
+	 * AST's types, values and child relations in the given SymbolTable, if it is not null.
+	 */
+	public JSONASTParser(char[] chars, int offset, int length, SymbolTable symbols) {
+		this.reader = null;
+		this.symbols = symbols;
+		buffer = chars;
+		position = offset;
+		limit = offset + length;
+	}
+
+	public static ASTNode parse(Reader reader, SymbolTable symbols)
+			throws IOException, JSONException {
+		return new JSONASTParser(reader, symbols).parse();
+	}
+
+	public static ASTNode parse(char[] chars, SymbolTable symbols) throws JSONException {
+		try {
+			return new JSONASTParser(chars, 0, chars.length, symbols).parse();
+		} catch (IOException e) {
+			// Cannot happen, since there is no Reader
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static ASTSnapshot parseSnapshot(Reader reader, SymbolTable symbols)
+			throws IOException, JSONException {
+		return new JSONASTParser(reader, symbols).parseSnapshot();
+	}
+
+	public static ASTSnapshot parseSnapshot(char[] chars, SymbolTable symbols)
+			throws JSONException {
+		try {
+			return new JSONASTParser(chars, 0, chars.length, symbols).parseSnapshot();
+		} catch (IOException e) {
+			// Cannot happen, since there is no Reader
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the scalar fields of the root object that are not part of the AST itself, such as
+	 * "isCorrect", "source" or "weight". Only valid after parsing.
+	 */
+	public JSONObject rootProperties() {
+		return rootProperties;
+	}
+
+	/**
+	 * Parses the next JSON object as an ASTNode.
+	 */
+	public ASTNode parse() throws IOException, JSONException {
+		return readNode();
+	}
+
+	/**
+	 * Parses the next JSON object as an ASTSnapshot, reading its correctness and source the same
+	 * way as {@link ASTSnapshot#parse(String)}.
+	 */
+	public ASTSnapshot parseSnapshot() throws IOException, JSONException {
+		ASTNode node = parse();
+		// Older versions used "correct"
+		boolean isCorrect = rootProperties.optBoolean("isCorrect") ||
+				rootProperties.optBoolean("correct");
+		return node.toSnapshot(isCorrect, rootProperties.optString("source"));
+	}
+
+	// The fields read so far for an object that is still being read
+	private static class Frame {
+		final boolean isRoot;
+		String type, value, id;
+		boolean hasType, hasValue, hasID;
+		SourceLocation start, end;
+		// Each child is an ASTNode, null (for a JSON null) or, if it could not be built, the
+		// JSONException to throw if it is used. Like org.json, which only builds the children
+		// that are used, a child left out of the childrenOrder can be invalid.
+		Map<String, Object> children;
+		List<String> childrenOrder;
+
+		// Whether we are reading the entries of this object's "children", rather than its own, and
+		// whether the next entry would be the first
+		boolean inChildren, first = true;
+		// The relation of the child object currently being read
+		String childRelation;
+
+		Frame(boolean isRoot) {
+			this.isRoot = isRoot;
+		}
+	}
+
+	// Objects are read using an explicit stack of Frames, rather than recursively, so that deep
+	// ASTs cannot overflow the call stack
+	private ASTNode readNode() throws IOException, JSONException {
+		List<Frame> stack = new ArrayList<>();
+		expect('{');
+		Frame frame = new Frame(true);
+		stack.add(frame);
+
+		while (true) {
+			// Each iteration reads one entry of the innermost object, or its end
+			boolean end;
+			if (frame.first) {
+				frame.first = false;
+				end = consumeIf('}');
+			} else if (consumeIf(',')) {
+				end = false;
+			} else {
+				expect('}');
+				end = true;
+			}
+
+			if (frame.inChildren) {
+				if (end) {
+					frame.inChildren = false;
+					continue;
+				}
+				String relation = readKey();
+				if (frame.children.containsKey(relation)) {
+					throw new JSONException("Duplicate key \"" + relation + "\"");
+				}
+				if (peek() == '{') {
+					expect('{');
+					frame.childRelation = relation;
+					frame = new Frame(false);
+					stack.add(frame);
+				} else {
+					Object scalar = readScalarOrSkip();
+					frame.children.put(relation, scalar == JSONObject.NULL ? null :
+						new JSONException("JSONObject[" + JSONObject.quote(relation) +
+								"] is not a JSONObject."));
+				}
+				continue;
+			}
+
+			if (end) {
+				Object node;
+				try {
+					node = createNode(frame);
+				} catch (JSONException e) {
+					if (frame.isRoot) throw e;
+					node = e;
+				}
+				stack.remove(stack.size() - 1);
+				if (stack.isEmpty()) return (ASTNode) node;
+				frame = stack.get(stack.size() - 1);
+				frame.children.put(frame.childRelation, node);
+				frame.childRelation = null;
+				continue;
+			}
+
+			String key = readKey();
+			switch (key) {
+			case "type":
+				checkDuplicate(key, frame.hasType);
+				frame.hasType = true;
+				frame.type = readStringField(key);
+				break;
+			case "value":
+				checkDuplicate(key, frame.hasValue);
+				frame.hasValue = true;
+				frame.value = readStringField(key);
+				break;
+			case "id":
+				checkDuplicate(key, frame.hasID);
+				frame.hasID = true;
+				frame.id = readStringField(key);
+				break;
+			case "sourceStart":
+				frame.start = readSourceLocation(key);
+				break;
+			case "sourceEnd":
+				frame.end = readSourceLocation(key);
+				break;
+			case "children":
+				// Like optJSONObject, anything other than an object is ignored
+				if (peek() == '{') {
+					expect('{');
+					// Read into a default HashMap, in document order, like org.json does
+					frame.children = new HashMap<>();
+					frame.inChildren = true;
+					frame.first = true;
+				} else {
+					skipValue();
+				}
+				break;
+			case "childrenOrder":
+				// Like optJSONArray, anything other than an array is ignored
+				if (peek() == '[') {
+					frame.childrenOrder = readStringArray(key);
+				} else {
+					skipValue();
+				}
+				break;
+			default:
+				if (frame.isRoot) {
+					Object property = readScalarOrSkip();
+					if (property != null) rootProperties.putOnce(key, property);
+				} else {
+					skipValue();
+				}
+			}
+		}
+	}
+
+	private ASTNode createNode(Frame frame) throws JSONException {
+		if (!frame.hasType) throw new JSONException("JSONObject[\"type\"] not found.");
+		ASTNode node = new ASTNode(frame.type, frame.value, frame.id, symbols);
+		node.startSourceLocation = frame.start;
+		node.endSourceLocation = frame.end;
+
+		Map<String, Object> children = frame.children;
+		if (children != null) {
+			// If we are not explicitly provided an order, use the keys in the order org.json would
+			// have used, which is the iteration order of the HashMap we read them into
+			Iterable<String> relations = frame.childrenOrder == null ?
+					children.keySet() : frame.childrenOrder;
+			for (String relation : relations) {
+				Object child = children.get(relation);
+				if (child instanceof JSONException) throw (JSONException) child;
+				node.addChild(relation, child == null ?
+						new ASTNode(ASTNode.EMPTY_TYPE, null, null, symbols) : (ASTNode) child);
+			}
+		}
+
+		return node;
+	}
+
+	private SourceLocation readSourceLocation(String key) throws IOException, JSONException {
+		List<Object> values = new ArrayList<>();
+		if (peek() == '[') {
+			expect('[');
+			if (!consumeIf(']')) {
+				do {
+					values.add(readScalarOrSkip());
+				} while (consumeIf(','));
+				expect(']');
+			}
+		} else {
+			skipValue();
+		}
+		// Like the org.json parser, report invalid locations, but continue without them
+		try {
+			if (values.size() < 2) throw new JSONException("JSONObject[" +
+					JSONObject.quote(key) + "] is not a JSONArray of two ints.");
+			return new SourceLocation(toInt(values.get(0)), toInt(values.get(1)));
+		} catch (JSONException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static int toInt(Object value) throws JSONException {
+		try {
+			return value instanceof Number ? ((Number) value).intValue() :
+				Integer.parseInt((String) value);
+		} catch (Exception e) {
+			throw new JSONException("JSONArray value is not an int: " + value);
+		}
+	}
+
+	private List<String> readStringArray(String key) throws IOException, JSONException {
+		List<String> strings = new ArrayList<>();
+		expect('[');
+		if (consumeIf(']')) return strings;
+		do {
+			if (peek() != '"') {
+				throw new JSONException("JSONArray[" + strings.size() + "] not a string.");
+			}
+			strings.add(readString());
+		} while (consumeIf(','));
+		expect(']');
+		return strings;
+	}
+
+	private String readStringField(String key) throws IOException, JSONException {
+		if (peek() != '"') {
+			throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] not a string.");
+		}
+		return readString();
+	}
+
+	private void checkDuplicate(String key, boolean seen) throws JSONException {
+		if (seen) throw new JSONException("Duplicate key \"" + key + "\"");
+	}
+
+	private String readKey() throws IOException, JSONException {
+		if (peek() != '"') throw syntaxError("Expected a quoted key");
+		String key = readString();
+		expect(':');
+		return key;
+	}
+
+	/**
+	 * Reads a scalar value, returning a String, Boolean, Number or {@link JSONObject#NULL}, as
+	 * org.json would, or skips an object or array and returns null.
+	 */
+	private Object readScalarOrSkip() throws IOException, JSONException {
+		char c = peek();
+		if (c == '{' || c == '[') {
+			skipValue();
+			return null;
+		}
+		if (c == '"') return readString();
+		text.setLength(0);
+		while (true) {
+			c = next();
+			if (c == 0 || c <= ' ' || ",:]}/\\\"[{;=#".indexOf(c) >= 0) break;
+			text.append(c);
+		}
+		position--;
+		if (text.length() == 0) throw syntaxError("Missing value");
+		return JSONObject.stringToValue(text.toString());
+	}
+
+	private void skipValue() throws IOException, JSONException {
+		// The closing brackets of the objects and arrays we are inside, which are skipped without
+		// recursion
+		StringBuilder closes = new StringBuilder();
+		do {
+			char c = peek();
+			if (c == '{' || c == '[') {
+				next();
+				char close = c == '{' ? '}' : ']';
+				if (!consumeIf(close)) {
+					closes.append(close);
+					if (close == '}') readKey();
+					continue;
+				}
+			} else {
+				readScalarOrSkip();
+			}
+			// After each value, close any objects and arrays that end with it
+			while (closes.length() > 0) {
+				char close = closes.charAt(closes.length() - 1);
+				if (consumeIf(',')) {
+					if (close == '}') readKey();
+					break;
+				}
+				expect(close);
+				closes.setLength(closes.length() - 1);
+			}
+		} while (closes.length() > 0);
+	}
+
+	private String readString() throws IOException, JSONException {
+		expect('"');
+		text.setLength(0);
+		while (true) {
+			// Copy runs of unescaped characters directly from the buffer
+			int runStart = position;
+			while (position < limit) {
+				char c = buffer[position];
+				if (c == '"' || c == '\\' || c == '\n' || c == '\r') break;
+				position++;
+			}
+			text.append(buffer, runStart, position - runStart);
+			char c = next();
+			switch (c) {
+			case '"':
+				return text.toString();
+			case '\\':
+				c = next();
+				switch (c) {
+				case 'b': text.append('\b'); break;
+				case 't': text.append('\t'); break;
+				case 'n': text.append('\n'); break;
+				case 'f': text.append('\f'); break;
+				case 'r': text.append('\r'); break;
+				case 'u':
+					int code = 0;
+					for (int i = 0; i < 4; i++) {
+						int digit = Character.digit(next(), 16);
+						if (digit < 0) throw syntaxError("Illegal escape.");
+						code = code * 16 + digit;
+					}
+					text.append((char) code);
+					break;
+				case '"':
+				case '\'':
+				case '\\':
+				case '/':
+					text.append(c);
+					break;
+				default:
+					throw syntaxError("Illegal escape.");
+				}
+				break;
+			case 0:
+			case '\n':
+			case '\r':
+				throw syntaxError("Unterminated string");
+			default:
+				// The buffer ran out in the middle of a run
+				text.append(c);
+			}
+		}
+	}
+
+	private void expect(char expected) throws IOException, JSONException {
+		char c = nextClean();
+		if (c != expected) throw syntaxError("Expected '" + expected + "'");
+	}
+
+	private boolean consumeIf(char expected) throws IOException {
+		if (peek() != expected) return false;
+		position++;
+		return true;
+	}
+
+	/**
+	 * Returns the next non-whitespace character without consuming it, or 0 at the end of input.
+	 */
+	private char peek() throws IOException {
+		char c = nextClean();
+		if (c != 0) position--;
+		return c;
+	}
+
+	private char nextClean() throws IOException {
+		while (true) {
+			char c = next();
+			if (c == 0 || c > ' ') return c;
+		}
+	}
+
+	private char next() throws IOException {
+		if (position >= limit && !fill()) {
+			// Keep the position consistent so that a following position-- is harmless
+			position = limit + 1;
+			return 0;
+		}
+		return buffer[position++];
+	}
+
+	private boolean fill() throws IOException {
+		if (reader == null) return false;
+		int read = reader.read(buffer, 0, buffer.length);
+		if (read <= 0) return false;
+		position = 0;
+		limit = read;
+		return true;
+	}
+
+	private JSONException syntaxError(String message) {
+		return new JSONException(message + " in AST JSON");
+	}
+}
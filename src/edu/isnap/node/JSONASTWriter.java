@@ -0,0 +1,268 @@
+package edu.isnap.node;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Writes an {@link ASTNode} as JSON directly to an {@link Appendable}, without building an
+ * intermediate {@link JSONObject} tree. The output is character-for-character the same as
+ * calling toString() or toString(indentFactor) on the result of {@link ASTNode#toJSON()},
+ * including field order, string escaping and indentation.
+ */
+public class JSONASTWriter {
+
+	private final Appendable out;
+	private final int indentFactor;
+
+	/**
+	 * Creates a writer that writes to the given Appendable, indenting each level of nesting by
+	 * the given number of spaces, or writing everything on one line if it is 0.
+	 */
+	public JSONASTWriter(Appendable out, int indentFactor) {
+		this.out = out;
+		this.indentFactor = indentFactor;
+	}
+
+	public void write(ASTNode node) throws IOException {
+		write(node, Collections.emptyMap());
+	}
+
+	/**
+	 * Writes the given node, followed by the given additional properties of the root object,
+	 * in iteration order, as though they had been put in the node's {@link ASTNode#toJSON()}.
+	 * Like {@link JSONObject#put(String, Object)}, properties with null values are left out.
+	 */
+	public void write(ASTNode node, Map<String, ?> rootProperties) throws IOException {
+		// Nodes are written as they are visited, using an explicit stack rather than recursion,
+		// so deep ASTs cannot overflow the call stack. The visitor cannot throw IOExceptions, so
+		// they are wrapped and unwrapped here.
+		try {
+			TreeWalker.walk(node, new NodeWriter(rootProperties));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private class NodeWriter implements TreeWalker.Visitor<ASTNode> {
+
+		private final Map<String, ?> rootProperties;
+
+		// For each node on the current path: the node itself, its number of fields, and the
+		// indentation of its fields and of its children
+		private ASTNode[] path = new ASTNode[16];
+		private int[] lengths = new int[16], innerIndents = new int[16], childIndents = new int[16];
+
+		NodeWriter(Map<String, ?> rootProperties) {
+			this.rootProperties = rootProperties;
+		}
+
+		@Override
+		public boolean enter(ASTNode node, int index, int depth) {
+			try {
+				return writeStart(node, index, depth);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public void exit(ASTNode node, int index, int depth) {
+			try {
+				if (node != null) writeEnd(node, depth);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		// Writes the node's key in its parent, and its fields up to the start of its children
+		private boolean writeStart(ASTNode node, int index, int depth) throws IOException {
+			int indent = 0;
+			if (depth > 0) {
+				ASTNode parent = path[depth - 1];
+				int nChildren = parent.children().size();
+				indent = childIndents[depth - 1];
+				writeKey(parent.childRelation(index), index == 0, nChildren, indent);
+			}
+			if (node == null) {
+				out.append("null");
+				return false;
+			}
+
+			List<ASTNode> children = node.children();
+			ASTSnapshot snapshot = node instanceof ASTSnapshot ? (ASTSnapshot) node : null;
+
+			int length = 1;
+			if (node.value != null) length++;
+			if (node.id != null) length++;
+			if (children.size() > 0) length += 2;
+			if (snapshot != null) length += snapshot.source == null ? 1 : 2;
+			if (depth == 0) {
+				for (Object value : rootProperties.values()) {
+					if (value != null) length++;
+				}
+			}
+
+			int innerIndent = beginObject(length, indent);
+			writeKey("type", true, length, innerIndent);
+			writeString(node.type);
+			if (node.value != null) {
+				writeKey("value", false, length, innerIndent);
+				writeString(node.value);
+			}
+			if (node.id != null) {
+				writeKey("id", false, length, innerIndent);
+				writeString(node.id);
+			}
+			int childIndent = innerIndent;
+			if (children.size() > 0) {
+				writeKey("children", false, length, innerIndent);
+				childIndent = beginObject(children.size(), innerIndent);
+			}
+
+			if (depth == path.length) {
+				int newLength = depth * 2;
+				path = Arrays.copyOf(path, newLength);
+				lengths = Arrays.copyOf(lengths, newLength);
+				innerIndents = Arrays.copyOf(innerIndents, newLength);
+				childIndents = Arrays.copyOf(childIndents, newLength);
+			}
+			path[depth] = node;
+			lengths[depth] = length;
+			innerIndents[depth] = innerIndent;
+			childIndents[depth] = childIndent;
+			return true;
+		}
+
+		// Writes the rest of the node, after its children
+		private void writeEnd(ASTNode node, int depth) throws IOException {
+			int length = lengths[depth], innerIndent = innerIndents[depth];
+			int nChildren = node.children().size();
+			if (nChildren > 0) {
+				endObject(nChildren, innerIndent, '}');
+
+				writeKey("childrenOrder", false, length, innerIndent);
+				out.append('[');
+				for (int i = 0; i < nChildren; i++) {
+					beginEntry(i == 0, nChildren, childIndents[depth]);
+					writeString(node.childRelation(i));
+				}
+				endObject(nChildren, innerIndent, ']');
+			}
+			if (node instanceof ASTSnapshot) {
+				ASTSnapshot snapshot = (ASTSnapshot) node;
+				writeKey("isCorrect", false, length, innerIndent);
+				out.append(String.valueOf(snapshot.isCorrect));
+				if (snapshot.source != null) {
+					writeKey("source", false, length, innerIndent);
+					writeString(snapshot.source);
+				}
+			}
+			if (depth == 0) {
+				for (String key : rootProperties.keySet()) {
+					Object value = rootProperties.get(key);
+					if (value == null) continue;
+					writeKey(key, false, length, innerIndent);
+					writeValue(value);
+				}
+			}
+			endObject(length, depth == 0 ? 0 : childIndents[depth - 1], '}');
+			path[depth] = null;
+		}
+	}
+
+	/**
+	 * Opens an object and returns the indentation of its entries. Like org.json, objects and arrays
+	 * with a single entry are written on one line.
+	 */
+	private int beginObject(int length, int indent) throws IOException {
+		out.append('{');
+		return length == 1 ? indent : indent + indentFactor;
+	}
+
+	private void endObject(int length, int indent, char close) throws IOException {
+		if (length > 1) {
+			if (indentFactor > 0) out.append('\n');
+			indent(indent);
+		}
+		out.append(close);
+	}
+
+	private void beginEntry(boolean first, int length, int indent) throws IOException {
+		if (length == 1) return;
+		if (!first) out.append(',');
+		if (indentFactor > 0) out.append('\n');
+		indent(indent);
+	}
+
+	private void writeKey(String key, boolean first, int length, int indent) throws IOException {
+		beginEntry(first, length, indent);
+		writeString(key);
+		out.append(':');
+		if (indentFactor > 0) out.append(' ');
+	}
+
+	private void indent(int indent) throws IOException {
+		for (int i = 0; i < indent; i++) out.append(' ');
+	}
+
+	private void writeValue(Object value) throws IOException {
+		if (value == JSONObject.NULL) {
+			out.append("null");
+		} else if (value instanceof Number) {
+			out.append(JSONObject.numberToString((Number) value));
+		} else if (value instanceof Boolean) {
+			out.append(value.toString());
+		} else {
+			writeString(value.toString());
+		}
+	}
+
+	/**
+	 * Writes the given string as a quoted JSON string, escaped the same way as
+	 * {@link JSONObject#quote(String)}.
+	 */
+	private void writeString(String string) throws IOException {
+		out.append('"');
+		int length = string.length();
+		// Append runs of characters that need no escaping all at once
+		int runStart = 0;
+		char last = 0;
+		for (int i = 0; i < length; i++) {
+			char c = string.charAt(i);
+			char previous = last;
+			last = c;
+			String escape;
+			switch (c) {
+			case '\\': escape = "\\\\"; break;
+			case '"': escape = "\\\""; break;
+			case '/':
+				if (previous != '<') continue;
+				escape = "\\/";
+				break;
+			case '\b': escape = "\\b"; break;
+			case '\t': escape = "\\t"; break;
+			case '\n': escape = "\\n"; break;
+			case '\f': escape = "\\f"; break;
+			case '\r': escape = "\\r"; break;
+			default:
+				if (c >= ' ' && (c < '\u0080' || c >= '\u00a0') &&
+						(c < '\u2000' || c >= '\u2100')) {
+					continue;
+				}
+				String hex = Integer.toHexString(c);
+				escape = "\\u0000".substring(0, 6 - hex.length()) + hex;
+			}
+			out.append(string, runStart, i);
+			out.append(escape);
+			runStart = i + 1;
+		}
+		out.append(string, runStart, length);
+		out.append('"');
+	}
+}
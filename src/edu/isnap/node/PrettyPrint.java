@@ -1,52 +1,88 @@
 package edu.isnap.node;
 
-import java.util.List;
+import java.util.Arrays;
 import java.util.function.Predicate;
 
 public class PrettyPrint {
 
 	public static String print(INode node) {
-		return print(node, "", Params.Default);
+		return print(node, Params.Default);
 	}
 
 	public static String toString(INode node, Params params) {
-		return print(node, "", params);
+		return print(node, params);
 	}
 
-	private  static String print(INode node, String indent, Params params) {
-		if (node == null) return "";
-		String out = params.baseString(node);
-		boolean inline = !params.isBodyType.test(node.type());
-		List<? extends INode> children = node.children();
-		if (children.size() > 0) {
-			if (inline) {
-				out += "(";
-				for (int i = 0; i < children.size(); i++) {
-					if (i > 0) out += ", ";
-					if (children.get(i) == null) {
-						out += "null";
-						continue;
-					}
-					out += print(children.get(i), indent, params);
+	private static String print(INode node, Params params) {
+		Printer printer = new Printer(params);
+		TreeWalker.walk(node, printer);
+		return printer.out.toString();
+	}
+
+	// Appends each node to a single StringBuilder as it is visited, rather than concatenating the
+	// strings of whole subtrees, so printing is linear in the size of the output
+	private static class Printer implements TreeWalker.Visitor<INode> {
+
+		private final StringBuilder out = new StringBuilder();
+		private final Params params;
+
+		// For each node on the current path, whether its children are printed inline and how far
+		// they are indented
+		private boolean[] inline = new boolean[16];
+		private int[] childIndent = new int[16];
+
+		Printer(Params params) {
+			this.params = params;
+		}
+
+		@Override
+		public boolean enter(INode node, int index, int depth) {
+			if (depth > 0) {
+				if (!inline[depth - 1]) {
+					indent(childIndent[depth - 1]);
+				} else if (index > 0) {
+					out.append(", ");
 				}
-				out += ")";
-			} else {
-				out += " {\n";
-				String indentMore = indent;
-				for (int i = 0; i < params.indent ; i++) indentMore += " ";
-				for (int i = 0; i < children.size(); i++) {
-					if (children.get(i) == null) {
-						out += indentMore + "null\n";
-						continue;
-					}
-					out += indentMore + print(children.get(i),
-							indentMore, params) + "\n";
+			}
+			if (node == null) {
+				if (depth > 0) out.append("null");
+				return false;
+			}
+			out.append(params.baseString(node));
+			if (node.children().size() == 0) return false;
+
+			if (depth == inline.length) {
+				inline = Arrays.copyOf(inline, depth * 2);
+				childIndent = Arrays.copyOf(childIndent, depth * 2);
+			}
+			boolean isInline = !params.isBodyType.test(node.type());
+			int indent = indentOf(depth);
+			inline[depth] = isInline;
+			childIndent[depth] = isInline ? indent : indent + params.indent;
+			out.append(isInline ? "(" : " {\n");
+			return true;
+		}
+
+		@Override
+		public void exit(INode node, int index, int depth) {
+			if (node != null && node.children().size() > 0) {
+				if (inline[depth]) {
+					out.append(")");
+				} else {
+					indent(indentOf(depth));
+					out.append("}");
 				}
-				out += indent + "}";
 			}
+			if (depth > 0 && !inline[depth - 1]) out.append("\n");
+		}
+
+		private int indentOf(int depth) {
+			return depth == 0 ? 0 : childIndent[depth - 1];
 		}
-		return out;
 
+		private void indent(int indent) {
+			for (int i = 0; i < indent; i++) out.append(' ');
+		}
 	}
 
 	public static class Params {
@@ -0,0 +1,71 @@
+package edu.isnap.node;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.isnap.node.ASTNode.SourceLocation;
+
+/**
+ * Resolves the start and end {@link SourceLocation}s of every node in an AST at once, giving the
+ * same results as calling {@link ASTNode#getSourceLocationStart()} and
+ * {@link ASTNode#getSourceLocationEnd()} on each node. Those methods search the node's subtree
+ * and later siblings on every call, so resolving a whole AST with them is quadratic, whereas this
+ * class computes all starts in one post-order pass and all ends in one pre-order pass, storing
+ * them in side tables.
+ * Note: the results are not updated if the AST is modified after it is resolved.
+ */
+public class SourceLocationResolver {
+
+	private final Map<ASTNode, SourceLocation> starts = new IdentityHashMap<>();
+	private final Map<ASTNode, SourceLocation> ends = new IdentityHashMap<>();
+
+	/**
+	 * Resolves the source locations of all nodes in the subtree rooted at the given node.
+	 */
+	public SourceLocationResolver(ASTNode root) {
+		// A node with no start of its own starts with its earliest child
+		TreeWalker.postOrder(root, node -> {
+			SourceLocation start = node.startSourceLocation;
+			if (start == null) {
+				for (ASTNode child : node.children()) {
+					if (child != null) start = SourceLocation.getEarlier(start, starts.get(child));
+				}
+			}
+			starts.put(node, start);
+		});
+
+		// A node with no end of its own ends where its next sibling with a start begins, or
+		// otherwise where its parent ends. The root may have siblings outside this subtree, so
+		// we ask it directly.
+		ends.put(root, root.getSourceLocationEnd());
+		TreeWalker.preOrder(root, node -> {
+			SourceLocation end = ends.get(node);
+			List<ASTNode> children = node.children();
+			// Walk the children backwards, so each knows the start of its next sibling that has one
+			for (int i = children.size() - 1; i >= 0; i--) {
+				ASTNode child = children.get(i);
+				if (child == null) continue;
+				ends.put(child, child.endSourceLocation == null ? end : child.endSourceLocation);
+				SourceLocation start = starts.get(child);
+				if (start != null) end = start;
+			}
+		});
+	}
+
+	/**
+	 * Returns the start of the given node, as {@link ASTNode#getSourceLocationStart()} would, or
+	 * null if it has none or was not in the resolved AST.
+	 */
+	public SourceLocation getStart(ASTNode node) {
+		return starts.get(node);
+	}
+
+	/**
+	 * Returns the end of the given node, as {@link ASTNode#getSourceLocationEnd()} would, or null
+	 * if it has none or was not in the resolved AST.
+	 */
+	public SourceLocation getEnd(ASTNode node) {
+		return ends.get(node);
+	}
+}
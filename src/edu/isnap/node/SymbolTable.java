@@ -0,0 +1,53 @@
+package edu.isnap.node;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns each distinct string (e.g. a node type or value) a small integer id, so that nodes can
+ * be stored and compared using ids rather than strings. Ids are only comparable between nodes
+ * that use the same SymbolTable. Each table also keeps one canonical instance of each symbol, so
+ * ASTs parsed with a shared table (e.g. all snapshots of a {@link
+ * edu.isnap.rating.data.TraceDataset}) do not hold duplicate copies of the same strings.
+ * Note: this class is not thread-safe.
+ */
+public class SymbolTable {
+
+	/** The id used to represent a null symbol. */
+	public final static int NONE = -1;
+
+	private final Map<String, Integer> ids = new HashMap<>();
+	private final List<String> symbols = new ArrayList<>();
+
+	/**
+	 * Returns the id of the given symbol, adding it to this table if it is not yet present.
+	 */
+	public int id(String symbol) {
+		if (symbol == null) return NONE;
+		Integer id = ids.get(symbol);
+		if (id == null) {
+			id = symbols.size();
+			ids.put(symbol, id);
+			symbols.add(symbol);
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the canonical instance of the given symbol, adding it to this table if it is not
+	 * yet present.
+	 */
+	public String intern(String symbol) {
+		return symbol(id(symbol));
+	}
+
+	public String symbol(int id) {
+		return id == NONE ? null : symbols.get(id);
+	}
+
+	public int size() {
+		return symbols.size();
+	}
+}
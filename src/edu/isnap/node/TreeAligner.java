@@ -0,0 +1,48 @@
+package edu.isnap.node;
+
+import edu.isnap.node.CodeAlignment.NodePairs;
+
+/**
+ * Pairs the nodes of two ASTs, e.g. to extract the edits between them or to find the most
+ * similar of a set of ASTs. Each pairing has a reward, where higher rewards indicate more similar
+ * ASTs. Rewards are only comparable between pairings produced by the same TreeAligner.
+ */
+public interface TreeAligner {
+
+	/**
+	 * Returns the pairing of the nodes of a with the nodes of b, along with its reward.
+	 */
+	public NodePairs align(ASTNode a, ASTNode b);
+
+	/**
+	 * Returns the pairing of the nodes of a with the nodes of b, or null if its reward is no more
+	 * than the given threshold. Implementations may use this to stop aligning early.
+	 */
+	public default NodePairs alignWithBound(ASTNode a, ASTNode b, int threshold) {
+		NodePairs pairs = align(a, b);
+		return pairs.getReward() > threshold ? pairs : null;
+	}
+
+	/**
+	 * Returns a TreeAligner that uses the exact aligner for pairs of ASTs with no more than maxSize
+	 * nodes each, and the approximate aligner (e.g. a {@link GreedyTreeAlignment}) for larger ones,
+	 * for which an exact alignment would be too slow.
+	 */
+	public static TreeAligner bySize(TreeAligner exact, TreeAligner approximate, int maxSize) {
+		return new TreeAligner() {
+			private TreeAligner choose(ASTNode a, ASTNode b) {
+				return a.treeSize() > maxSize || b.treeSize() > maxSize ? approximate : exact;
+			}
+
+			@Override
+			public NodePairs align(ASTNode a, ASTNode b) {
+				return choose(a, b).align(a, b);
+			}
+
+			@Override
+			public NodePairs alignWithBound(ASTNode a, ASTNode b, int threshold) {
+				return choose(a, b).alignWithBound(a, b, threshold);
+			}
+		};
+	}
+}
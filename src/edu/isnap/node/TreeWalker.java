@@ -0,0 +1,106 @@
+package edu.isnap.node;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Traverses trees of INodes using an explicit stack, rather than recursion, so that arbitrarily
+ * deep trees (e.g. long chains of Python elifs) cannot overflow the call stack, and visitors are
+ * called through a single interface call per node, rather than a chain of lambdas.
+ */
+public class TreeWalker {
+
+	/**
+	 * Receives each node of a tree before and after its children. Positions are passed as
+	 * primitives: the node's index in its parent's children (-1 for the root) and its depth below
+	 * the root. Null children are also visited, as leaves, so that visitors can account for
+	 * placeholders.
+	 */
+	public interface Visitor<N extends INode> {
+		/**
+		 * Called before the node's children are visited. Returns false to skip its children.
+		 */
+		public boolean enter(N node, int index, int depth);
+
+		/**
+		 * Called after the node's children have been visited (or skipped).
+		 */
+		public default void exit(N node, int index, int depth) { }
+	}
+
+	/**
+	 * Visits every node of the tree rooted at the given node, including null children, calling
+	 * {@link Visitor#enter(INode, int, int)} in pre-order and
+	 * {@link Visitor#exit(INode, int, int)} in post-order.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <N extends INode> void walk(N root, Visitor<N> visitor) {
+		if (!visitor.enter(root, -1, 0) || root == null) {
+			visitor.exit(root, -1, 0);
+			return;
+		}
+
+		// The path from the root to the current node, and the index of the next child to visit
+		// for each node on it
+		INode[] path = new INode[16];
+		int[] nextChild = new int[16];
+		path[0] = root;
+		int top = 0;
+
+		while (top >= 0) {
+			N node = (N) path[top];
+			List<? extends INode> children = node.children();
+			int index = nextChild[top];
+			if (index < children.size()) {
+				nextChild[top]++;
+				N child = (N) children.get(index);
+				int depth = top + 1;
+				if (visitor.enter(child, index, depth) && child != null) {
+					if (depth == path.length) {
+						path = Arrays.copyOf(path, depth * 2);
+						nextChild = Arrays.copyOf(nextChild, depth * 2);
+					}
+					path[depth] = child;
+					nextChild[depth] = 0;
+					top = depth;
+				} else {
+					visitor.exit(child, index, depth);
+				}
+			} else {
+				path[top--] = null;
+				visitor.exit(node, top < 0 ? -1 : nextChild[top] - 1, top + 1);
+			}
+		}
+	}
+
+	/**
+	 * Calls the given action on each non-null node of the tree rooted at the given node, parents
+	 * before children.
+	 */
+	public static <N extends INode> void preOrder(N root, Consumer<? super N> action) {
+		walk(root, (N node, int index, int depth) -> {
+			if (node == null) return false;
+			action.accept(node);
+			return true;
+		});
+	}
+
+	/**
+	 * Calls the given action on each non-null node of the tree rooted at the given node, children
+	 * before parents.
+	 */
+	public static <N extends INode> void postOrder(N root, Consumer<? super N> action) {
+		walk(root, new Visitor<N>() {
+			@Override
+			public boolean enter(N node, int index, int depth) {
+				return node != null;
+			}
+
+			@Override
+			public void exit(N node, int index, int depth) {
+				if (node != null) action.accept(node);
+			}
+		});
+	}
+}
@@ -0,0 +1,228 @@
+package edu.isnap.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.isnap.node.CodeAlignment.NodePairs;
+
+/**
+ * Pairs the nodes of two ASTs using the mapping of a minimum-cost ordered tree edit script,
+ * computed with the Zhang-Shasha algorithm, which only fills the forest distance matrices of
+ * "keyroot" pairs. Unlike {@link CodeAlignment}, a node can be paired even if its parent is not,
+ * so the mapping can follow code that has been moved into or out of a new parent.
+ *
+ * Costs are chosen so that rewards are comparable to those of a CodeAlignment with the same
+ * parameters: deleting or inserting a node costs the match reward and renaming a node costs twice
+ * the rename penalty, so minimizing the cost maximizes the sum of the rewards of the paired nodes
+ * (the match reward, minus the rename penalty if the pair differs). The reward reported is this
+ * sum. Null children are aligned like CodeAlignment: they can only be paired with each other, and
+ * are not included in the mapping.
+ *
+ * This uses O(|a| * |b|) memory, so it is best suited to small and medium-sized ASTs.
+ */
+public class ZhangShashaAlignment implements TreeAligner {
+
+	private final int matchReward;
+	private final int renamePenalty;
+
+	public ZhangShashaAlignment(int matchReward, int renamePenalty) {
+		if (matchReward <= 0 || renamePenalty < 0) {
+			throw new IllegalArgumentException(
+					"Tree edit distance requires a positive match reward and rename penalty >= 0");
+		}
+		this.matchReward = matchReward;
+		this.renamePenalty = renamePenalty;
+	}
+
+	@Override
+	public NodePairs align(ASTNode a, ASTNode b) {
+		return new Alignment(a, b).align();
+	}
+
+	/**
+	 * The nodes of a tree in post-order, including null children, with the position of each
+	 * node's leftmost leaf.
+	 */
+	private static class PostOrder implements TreeWalker.Visitor<ASTNode> {
+		final List<ASTNode> nodes;
+		final int[] leftmostLeaves;
+		final int[] keyroots;
+
+		// For the node at each depth of the current path, the leftmost leaf of its first child,
+		// or -1 if it has none yet
+		private int[] firstLeftmostLeaves = new int[16];
+
+		PostOrder(ASTNode root) {
+			// The size of a tree counts its null children, so it is the number of nodes here
+			int n = root == null ? 1 : root.treeSize();
+			nodes = new ArrayList<>(n);
+			leftmostLeaves = new int[n];
+			// TreeWalker uses an explicit stack, so deep ASTs cannot overflow the call stack
+			TreeWalker.walk(root, this);
+			firstLeftmostLeaves = null;
+
+			// A keyroot is the highest node with a given leftmost leaf, i.e. the root or any node
+			// with a left sibling. We list them in post-order, so that subproblems come first.
+			boolean[] seen = new boolean[n];
+			int[] roots = new int[n];
+			int count = 0;
+			for (int i = n - 1; i >= 0; i--) {
+				if (seen[leftmostLeaves[i]]) continue;
+				seen[leftmostLeaves[i]] = true;
+				roots[count++] = i;
+			}
+			keyroots = new int[count];
+			for (int i = 0; i < count; i++) keyroots[i] = roots[count - 1 - i];
+		}
+
+		@Override
+		public boolean enter(ASTNode node, int index, int depth) {
+			if (depth == firstLeftmostLeaves.length) {
+				firstLeftmostLeaves = Arrays.copyOf(firstLeftmostLeaves, depth * 2);
+			}
+			firstLeftmostLeaves[depth] = -1;
+			return true;
+		}
+
+		@Override
+		public void exit(ASTNode node, int index, int depth) {
+			int position = nodes.size();
+			int leftmostLeaf = firstLeftmostLeaves[depth];
+			if (leftmostLeaf == -1) leftmostLeaf = position;
+			nodes.add(node);
+			leftmostLeaves[position] = leftmostLeaf;
+			if (depth > 0 && firstLeftmostLeaves[depth - 1] == -1) {
+				firstLeftmostLeaves[depth - 1] = leftmostLeaf;
+			}
+		}
+
+		int size() {
+			return nodes.size();
+		}
+	}
+
+	private class Alignment {
+		private final PostOrder a, b;
+		private final int nA, nB;
+		// treeDistances[i * nB + j] is the cost of editing subtree i of a into subtree j of b
+		private final int[] treeDistances;
+		// The forest distances of the current keyroot pair, reused between pairs
+		private final int[][] forestDistances;
+
+		Alignment(ASTNode rootA, ASTNode rootB) {
+			a = new PostOrder(rootA);
+			b = new PostOrder(rootB);
+			nA = a.size();
+			nB = b.size();
+			treeDistances = new int[nA * nB];
+			forestDistances = new int[nA + 1][nB + 1];
+		}
+
+		NodePairs align() {
+			for (int keyrootA : a.keyroots) {
+				for (int keyrootB : b.keyroots) {
+					computeForestDistances(keyrootA, keyrootB);
+				}
+			}
+
+			NodePairs mapping = new NodePairs();
+			mapping.reward = addPairs(mapping);
+			return mapping;
+		}
+
+		private int renameCost(int i, int j) {
+			ASTNode nodeA = a.nodes.get(i), nodeB = b.nodes.get(j);
+			if (nodeA == null || nodeB == null) {
+				// Null children can only be paired with each other
+				return nodeA == nodeB ? 0 : 2 * matchReward + 1;
+			}
+			return nodeA.shallowEquals(nodeB, false) ? 0 : 2 * renamePenalty;
+		}
+
+		/**
+		 * Fills the forest distance matrix for the subtrees rooted at i and j, where row x
+		 * corresponds to the forest of a's nodes from i's leftmost leaf up to position
+		 * leftmost(i) + x - 1 (and likewise for columns). Also records the tree distance of any
+		 * pair of subtrees that share leftmost leaves with i and j.
+		 */
+		private void computeForestDistances(int i, int j) {
+			int leftA = a.leftmostLeaves[i], leftB = b.leftmostLeaves[j];
+			int rows = i - leftA + 1, columns = j - leftB + 1;
+			int[][] fd = forestDistances;
+
+			fd[0][0] = 0;
+			for (int x = 1; x <= rows; x++) fd[x][0] = fd[x - 1][0] + matchReward;
+			for (int y = 1; y <= columns; y++) fd[0][y] = fd[0][y - 1] + matchReward;
+
+			for (int x = 1; x <= rows; x++) {
+				int nodeA = leftA + x - 1;
+				int leftNodeA = a.leftmostLeaves[nodeA];
+				int[] row = fd[x], previous = fd[x - 1];
+				for (int y = 1; y <= columns; y++) {
+					int nodeB = leftB + y - 1;
+					int leftNodeB = b.leftmostLeaves[nodeB];
+					int cost = Math.min(previous[y], row[y - 1]) + matchReward;
+					if (leftNodeA == leftA && leftNodeB == leftB) {
+						// Both forests are whole trees, so their distance is a tree distance
+						cost = Math.min(cost, previous[y - 1] + renameCost(nodeA, nodeB));
+						treeDistances[nodeA * nB + nodeB] = cost;
+					} else {
+						cost = Math.min(cost, fd[leftNodeA - leftA][leftNodeB - leftB] +
+								treeDistances[nodeA * nB + nodeB]);
+					}
+					row[y] = cost;
+				}
+			}
+		}
+
+		/**
+		 * Follows the traceback of the forest distance matrices, starting from the roots, adding
+		 * paired nodes to the mapping. Whenever the traceback pairs two subtrees that are not
+		 * whole forests of the current matrix, their own matrix is recomputed and traced later.
+		 * Returns the total reward of the pairs.
+		 */
+		private int addPairs(NodePairs mapping) {
+			int reward = 0;
+			List<int[]> stack = new ArrayList<>();
+			stack.add(new int[] {nA - 1, nB - 1});
+			while (!stack.isEmpty()) {
+				int[] pair = stack.remove(stack.size() - 1);
+				int i = pair[0], j = pair[1];
+				computeForestDistances(i, j);
+				int[][] fd = forestDistances;
+				int leftA = a.leftmostLeaves[i], leftB = b.leftmostLeaves[j];
+				int x = i - leftA + 1, y = j - leftB + 1;
+				while (x > 0 || y > 0) {
+					if (x > 0 && fd[x][y] == fd[x - 1][y] + matchReward) {
+						x--;
+						continue;
+					}
+					if (y > 0 && fd[x][y] == fd[x][y - 1] + matchReward) {
+						y--;
+						continue;
+					}
+					int nodeA = leftA + x - 1, nodeB = leftB + y - 1;
+					int leftNodeA = a.leftmostLeaves[nodeA], leftNodeB = b.leftmostLeaves[nodeB];
+					if (leftNodeA == leftA && leftNodeB == leftB) {
+						reward += addPair(nodeA, nodeB, mapping);
+						x--;
+						y--;
+					} else {
+						stack.add(new int[] {nodeA, nodeB});
+						x = leftNodeA - leftA;
+						y = leftNodeB - leftB;
+					}
+				}
+			}
+			return reward;
+		}
+
+		private int addPair(int i, int j, NodePairs mapping) {
+			ASTNode nodeA = a.nodes.get(i), nodeB = b.nodes.get(j);
+			if (nodeA == null) return matchReward;
+			mapping.put(nodeA, nodeB);
+			return nodeA.shallowEquals(nodeB, false) ? matchReward : matchReward - renamePenalty;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package edu.isnap.rating;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.ToIntFunction;
+
+import edu.isnap.node.ASTNode;
+import edu.isnap.node.AlignmentArena;
+import edu.isnap.node.CodeAlignment;
+
+/**
+ * Checks that {@link CodeAlignment} allocates no memory in its steady state, by counting the bytes
+ * allocated by the current thread while repeatedly aligning the same random pairs of ASTs (see
+ * {@link AlignmentConformance}), once the {@link AlignmentArena} has grown to fit them. This
+ * requires a JVM whose ThreadMXBean supports allocation counting (e.g. HotSpot).
+ *
+ * Only {@link CodeAlignment#getReward(ASTNode, ASTNode)} with a sequential aligner is expected to
+ * allocate nothing, and the check fails if it does. The other paths are exempt, and their
+ * allocations per alignment are only reported:
+ * <ul>
+ * <li>align and alignWithBound build the resulting NodePairs (and alignWithBound counts the node
+ * types of each tree the first time it is aligned, or after it is modified)</li>
+ * <li>very wide child matrices are aligned with a small RowScores object</li>
+ * <li>parallel aligners create a task for each child pair (or row chunk) they score</li>
+ * <li>aligners anchored by ids index the ids of the second tree in a HashMap</li>
+ * </ul>
+ */
+public class AlignmentAllocations {
+
+	private final static int N_PAIRS = 200, N_WIDE_PAIRS = 2, WARMUP_ROUNDS = 20, ROUNDS = 10;
+	private final static long SEED = 1234;
+
+	private final static com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) {
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			System.out.println("Allocation counting is not supported by this JVM");
+			return;
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		Random random = new Random(SEED);
+		List<ASTNode[]> pairs = new ArrayList<>();
+		for (int i = 0; i < N_PAIRS; i++) pairs.add(AlignmentConformance.randomPair(random, 4, 5));
+		for (int i = 0; i < N_WIDE_PAIRS; i++) {
+			pairs.add(AlignmentConformance.randomWidePair(random));
+		}
+
+		CodeAlignment sequential = new CodeAlignment(1, 2);
+		CodeAlignment withArena = new CodeAlignment(1, 2, new AlignmentArena());
+		CodeAlignment parallel = CodeAlignment.parallel(1, 2);
+		CodeAlignment anchored = CodeAlignment.anchoredByIDs(1, 2);
+
+		Map<String, Double> required = new LinkedHashMap<>();
+		required.put("getReward", measure(pairs, p -> sequential.getReward(p[0], p[1])));
+		required.put("getReward (own arena)", measure(pairs, p -> withArena.getReward(p[0], p[1])));
+
+		Map<String, Double> exempt = new LinkedHashMap<>();
+		exempt.put("align", measure(pairs, p -> sequential.align(p[0], p[1]).getReward()));
+		exempt.put("alignWithBound", measure(pairs, p -> {
+			CodeAlignment.NodePairs mapping = sequential.alignWithBound(p[0], p[1], 0);
+			return mapping == null ? 0 : mapping.getReward();
+		}));
+		exempt.put("getReward (parallel)", measure(pairs, p -> parallel.getReward(p[0], p[1])));
+		exempt.put("getReward (anchored)", measure(pairs, p -> anchored.getReward(p[0], p[1])));
+
+		boolean passed = true;
+		for (String name : required.keySet()) {
+			double bytes = required.get(name);
+			System.out.printf("%s: %.1f bytes per alignment\n", name, bytes);
+			if (bytes > 0) passed = false;
+		}
+		for (String name : exempt.keySet()) {
+			System.out.printf("%s (exempt): %.1f bytes per alignment\n", name, exempt.get(name));
+		}
+		if (!passed) {
+			System.out.println("FAILED: the steady-state alignment allocated memory");
+			System.exit(1);
+		}
+		System.out.println("Passed");
+	}
+
+	/**
+	 * Returns the average number of bytes the current thread allocated for each alignment of the
+	 * given pairs, after warming up, less the bytes allocated by counting them.
+	 */
+	private static double measure(List<ASTNode[]> pairs, ToIntFunction<ASTNode[]> aligner) {
+		long checksum = 0;
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			for (ASTNode[] pair : pairs) checksum += aligner.applyAsInt(pair);
+		}
+
+		long threadID = Thread.currentThread().getId();
+		long overhead = threads.getThreadAllocatedBytes(threadID);
+		overhead = threads.getThreadAllocatedBytes(threadID) - overhead;
+
+		long start = threads.getThreadAllocatedBytes(threadID);
+		for (int i = 0; i < ROUNDS; i++) {
+			// An indexed loop, since an iterator would be allocated for each round
+			for (int j = 0; j < pairs.size(); j++) checksum += aligner.applyAsInt(pairs.get(j));
+		}
+		long bytes = threads.getThreadAllocatedBytes(threadID) - start - overhead;
+		// Use the checksum, so the alignments cannot be optimized away
+		if (checksum == Long.MIN_VALUE) System.out.println(checksum);
+		return Math.max(0, bytes) / (double) (ROUNDS * pairs.size());
+	}
+}
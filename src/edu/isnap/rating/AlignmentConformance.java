@@ -0,0 +1,246 @@
+package edu.isnap.rating;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import edu.isnap.node.ASTNode;
+import edu.isnap.node.AlignmentArena;
+import edu.isnap.node.CodeAlignment;
+import edu.isnap.node.CodeAlignment.NodePairs;
+import edu.isnap.rating.data.GoldStandard;
+import edu.isnap.rating.data.TutorHint;
+
+/**
+ * Checks that {@link CodeAlignment} gives exactly the same {@link NodePairs} and reward as the
+ * original recursive alignment, which fills a new matrix for each pair of subtrees and realigns
+ * each matched pair during its traceback. The original is kept here as a reference. Each
+ * CodeAlignment variant (sequential, parallel and with its own arena) is checked with several
+ * reward settings, on the pairs of ASTs in each dataset's gold standard (if the dataset exists),
+ * and on a fixed set of random pairs of ASTs, which include very wide nodes.
+ */
+public class AlignmentConformance {
+
+	private final static int[][] REWARD_SETTINGS = { {1, 1}, {1, 2}, {2, 1}, {1, 0}, {3, 5} };
+	private final static int N_RANDOM_PAIRS = 2000, N_WIDE_PAIRS = 10;
+	private final static long SEED = 1234;
+
+	public static void main(String[] args) throws FileNotFoundException, IOException {
+		if (new File(HintRater.isnapF16F17Dir()).exists()) {
+			check("isnapF16F17", readPairs(HintRater.isnapF16F17Dir()));
+		}
+		if (new File(HintRater.itapS16Dir()).exists()) {
+			check("itapS16", readPairs(HintRater.itapS16Dir()));
+		}
+		Random random = new Random(SEED);
+		List<ASTNode[]> pairs = new ArrayList<>();
+		for (int i = 0; i < N_RANDOM_PAIRS; i++) pairs.add(randomPair(random, 4, 5));
+		check("random", pairs);
+		pairs.clear();
+		for (int i = 0; i < N_WIDE_PAIRS; i++) pairs.add(randomWidePair(random));
+		check("random wide", pairs);
+	}
+
+	public static void check(String name, List<ASTNode[]> pairs) {
+		System.out.println(name + ": " + pairs.size() + " pairs");
+		for (int[] setting : REWARD_SETTINGS) {
+			int matchReward = setting[0], renamePenalty = setting[1];
+			Map<String, CodeAlignment> aligners = new LinkedHashMap<>();
+			aligners.put("sequential", new CodeAlignment(matchReward, renamePenalty));
+			aligners.put("parallel", CodeAlignment.parallel(matchReward, renamePenalty));
+			aligners.put("arena", new CodeAlignment(matchReward, renamePenalty,
+					new AlignmentArena()));
+
+			long referenceTime = 0;
+			Map<String, Long> times = new LinkedHashMap<>();
+			Map<String, Integer> differences = new LinkedHashMap<>();
+			for (ASTNode[] pair : pairs) {
+				long time = System.nanoTime();
+				Map<ASTNode, ASTNode> expected = new IdentityHashMap<>();
+				int expectedReward = align(pair[0], pair[1], expected, matchReward, renamePenalty);
+				referenceTime += System.nanoTime() - time;
+
+				for (String alignerName : aligners.keySet()) {
+					time = System.nanoTime();
+					NodePairs actual = aligners.get(alignerName).align(pair[0], pair[1]);
+					times.merge(alignerName, System.nanoTime() - time, Long::sum);
+					boolean conforms = conforms(expected, expectedReward, actual) &&
+							aligners.get(alignerName).getReward(pair[0], pair[1]) ==
+							expectedReward;
+					differences.merge(alignerName, conforms ? 0 : 1, Integer::sum);
+					if (!conforms && differences.get(alignerName) <= 3) {
+						System.out.printf("Mismatch (%s, %d/%d):\n%s\n%s\n", alignerName,
+								matchReward, renamePenalty, pair[0], pair[1]);
+					}
+				}
+			}
+			StringBuilder sb = new StringBuilder();
+			for (String alignerName : aligners.keySet()) {
+				sb.append(String.format(", %s %d differ (%.1fms)", alignerName,
+						differences.get(alignerName), times.get(alignerName) / 1e6));
+			}
+			System.out.printf("\t%d/%d: reference %.1fms%s\n", matchReward, renamePenalty,
+					referenceTime / 1e6, sb);
+		}
+	}
+
+	private static boolean conforms(Map<ASTNode, ASTNode> expected, int expectedReward,
+			NodePairs actual) {
+		if (actual.getReward() != expectedReward) return false;
+		if (actual.keysetFrom().size() != expected.size()) return false;
+		for (ASTNode from : expected.keySet()) {
+			if (!actual.containsFrom(from) || actual.getFrom(from) != expected.get(from)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The original alignment: scores each pair of children by aligning them without a mapping,
+	 * and then realigns each pair chosen by the traceback with the mapping.
+	 */
+	private static int align(ASTNode a, ASTNode b, Map<ASTNode, ASTNode> mapping,
+			int matchReward, int renamePenalty) {
+		if (a == null) return b == null ? matchReward : 0;
+
+		int reward = matchReward;
+		if (!a.shallowEquals(b, false)) reward -= renamePenalty;
+
+		if (mapping != null) mapping.put(a, b);
+
+		List<ASTNode> childrenA = a.children();
+		List<ASTNode> childrenB = b.children();
+
+		int nChildrenA = childrenA.size();
+		int nChildrenB = childrenB.size();
+
+		if (nChildrenA == 0 || nChildrenB == 0) {
+			return reward;
+		}
+
+		int[][] matrix = new int[nChildrenA + 1][nChildrenB + 1];
+
+		for (int indexA = 1; indexA <= nChildrenA; indexA++) {
+			ASTNode childA = childrenA.get(indexA - 1);
+			for (int indexB = 1; indexB <= nChildrenB; indexB++) {
+				ASTNode childB = childrenB.get(indexB - 1);
+
+				int pairReward = align(childA, childB, null, matchReward, renamePenalty);
+				int best = Math.max(Math.max(
+						matrix[indexA - 1][indexB],
+						matrix[indexA][indexB - 1]),
+						matrix[indexA - 1][indexB - 1] + pairReward);
+				matrix[indexA][indexB] = best;
+			}
+		}
+
+		int indexA = nChildrenA, indexB = nChildrenB;
+		while (indexA > 0 && indexB > 0) {
+			int r = matrix[indexA][indexB];
+			if (r == matrix[indexA - 1][indexB]) {
+				indexA--;
+				continue;
+			}
+			if (r == matrix[indexA][indexB - 1]) {
+				indexB--;
+				continue;
+			}
+			if (mapping != null) {
+				ASTNode childA = childrenA.get(indexA - 1);
+				ASTNode childB = childrenB.get(indexB - 1);
+				align(childA, childB, mapping, matchReward, renamePenalty);
+			}
+			indexA--; indexB--;
+		}
+
+		return matrix[nChildrenA][nChildrenB] + reward;
+	}
+
+	private static List<ASTNode[]> readPairs(String dataset)
+			throws FileNotFoundException, IOException {
+		GoldStandard standard = GoldStandard.parseSpreadsheet(dataset + HintRater.GS_SPREADSHEET);
+		List<ASTNode[]> pairs = new ArrayList<>();
+		for (String assignmentID : standard.getAssignmentIDs()) {
+			for (String requestID : standard.getRequestIDs(assignmentID)) {
+				for (TutorHint hint : standard.getValidHints(assignmentID, requestID)) {
+					pairs.add(new ASTNode[] { hint.from, hint.to });
+				}
+			}
+		}
+		return pairs;
+	}
+
+	private final static String[] TYPES = { "script", "block", "var", "literal", "list" };
+	private final static String[] VALUES = { null, "x", "y", "1", "2" };
+
+	/**
+	 * Returns a random AST and a copy of it with a few random edits, so that the two share most of
+	 * their structure, as the ASTs of a hint request and a hint do.
+	 */
+	static ASTNode[] randomPair(Random random, int maxDepth, int maxChildren) {
+		ASTNode a = randomTree(random, maxDepth, maxChildren);
+		ASTNode b = a.copy();
+		int nEdits = 1 + random.nextInt(4);
+		for (int i = 0; i < nEdits; i++) edit(random, b);
+		return new ASTNode[] { a, b };
+	}
+
+	/**
+	 * Returns a pair of ASTs with more than 128 children at the root, some of which have more than
+	 * 128 children of their own, so their child sequences are too wide for a full matrix.
+	 */
+	static ASTNode[] randomWidePair(Random random) {
+		ASTNode a = new ASTNode("snapshot", null, null);
+		int nChildren = 130 + random.nextInt(40);
+		for (int i = 0; i < nChildren; i++) {
+			ASTNode child;
+			if (random.nextInt(60) == 0) {
+				child = new ASTNode("sprite", null, null);
+				int nGrandchildren = 130 + random.nextInt(10);
+				for (int j = 0; j < nGrandchildren; j++) child.addChild(randomTree(random, 1, 2));
+			} else {
+				child = randomTree(random, 2, 3);
+			}
+			a.addChild(child);
+		}
+		ASTNode b = a.copy();
+		int nEdits = 5 + random.nextInt(20);
+		for (int i = 0; i < nEdits; i++) edit(random, b);
+		return new ASTNode[] { a, b };
+	}
+
+	private static ASTNode randomTree(Random random, int maxDepth, int maxChildren) {
+		ASTNode node = new ASTNode(TYPES[random.nextInt(TYPES.length)],
+				VALUES[random.nextInt(VALUES.length)], null);
+		if (maxDepth > 0) {
+			int nChildren = random.nextInt(maxChildren + 1);
+			for (int i = 0; i < nChildren; i++) {
+				node.addChild(randomTree(random, maxDepth - 1, maxChildren));
+			}
+		}
+		return node;
+	}
+
+	// Inserts, deletes or renames a random node
+	private static void edit(Random random, ASTNode root) {
+		List<ASTNode> nodes = new ArrayList<>();
+		root.recurse(nodes::add);
+		ASTNode node = nodes.get(random.nextInt(nodes.size()));
+		int op = random.nextInt(3);
+		if (op == 0 || node.parent() == null) {
+			node.addChild(random.nextInt(node.children().size() + 1), randomTree(random, 1, 2));
+		} else if (op == 1) {
+			node.parent().removeChild(node.index());
+		} else {
+			node.replaceWith(new ASTNode(TYPES[random.nextInt(TYPES.length)],
+					VALUES[random.nextInt(VALUES.length)], null));
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package edu.isnap.rating;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+
+import org.apache.commons.collections4.Bag;
+import org.apache.commons.collections4.bag.AbstractMapBag;
+
+import edu.isnap.rating.EditExtractor.Edit;
+
+/**
+ * A Bag of {@link Edit}s backed by a hash map, using each Edit's cached fingerprint as its hash,
+ * rather than a TreeBag, which compares Edits by their string representations. Iteration follows
+ * the order in which edits were first added, so it is deterministic. Use
+ * {@link EditExtractor#printEditsComparison(Bag, Bag, String, String)} to print edits in sorted
+ * order.
+ */
+public class EditBag extends AbstractMapBag<Edit> {
+
+	public EditBag() {
+		super(new LinkedHashMap<Edit, MutableInteger>());
+	}
+
+	public EditBag(Collection<? extends Edit> edits) {
+		this();
+		addAll(edits);
+	}
+
+	/**
+	 * Returns the size this bag would have after calling {@link Bag#retainAll(Collection)} with
+	 * the given bag, without modifying or copying either bag. Like retainAll, an edit is kept as
+	 * many times as it occurs in the other bag if that is at most as many times as it occurs in
+	 * this bag, and is otherwise removed.
+	 */
+	public int retainedCount(Bag<Edit> other) {
+		int count = 0;
+		for (Edit edit : uniqueSet()) {
+			int otherCount = other.getCount(edit);
+			if (otherCount >= 1 && otherCount <= getCount(edit)) count += otherCount;
+		}
+		return count;
+	}
+}
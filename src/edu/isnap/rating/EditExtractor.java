@@ -2,36 +2,62 @@ package edu.isnap.rating;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 import org.apache.commons.collections4.Bag;
 import org.apache.commons.collections4.bag.TreeBag;
 import org.apache.commons.lang.builder.EqualsBuilder;
-import org.apache.commons.lang.builder.HashCodeBuilder;
 
 import edu.isnap.node.ASTNode;
-import edu.isnap.node.CodeAlignment;
+import edu.isnap.node.ASTOverlay;
 import edu.isnap.node.CodeAlignment.NodePairs;
+import edu.isnap.node.TreeAligner;
 import edu.isnap.util.Spreadsheet;
 import edu.isnap.util.map.BiMap;
 
 public class EditExtractor {
 
 	private final RatingConfig config;
+	private final TreeAligner aligner;
 
 	private final Set<String> ignoreTypes = new HashSet<>();
 
 	public EditExtractor(RatingConfig config, String... ignoreTypes) {
+		this(config, config.getTreeAligner(), ignoreTypes);
+	}
+
+	public EditExtractor(RatingConfig config, TreeAligner aligner, String... ignoreTypes) {
 		this.config = config;
+		this.aligner = aligner;
 		Arrays.stream(ignoreTypes).forEach(this.ignoreTypes::add);
 	}
 
-	public Bag<Edit> getEdits(ASTNode from, ASTNode to) {
+	/**
+	 * Returns the TreeAligner used to pair nodes when extracting edits.
+	 */
+	public TreeAligner getAligner() {
+		return aligner;
+	}
+
+	public EditBag getEdits(ASTNode from, ASTNode to) {
 		return extractEditsUsingCodeAlign(from, to);
 	}
 
+	/**
+	 * Returns the edits between the ASTs presented by the given overlays. Edits only reference
+	 * node types and values, so the overlays are aligned using their base ASTs directly, unless
+	 * they change something.
+	 */
+	public EditBag getEdits(ASTOverlay from, ASTOverlay to) {
+		return extractEditsUsingCodeAlign(from.toAST(), to.toAST());
+	}
+
 	public static void printEditsComparison(Bag<Edit> editsA, Bag<Edit> editsB,
 			String nameA, String nameB) {
 		Bag<Edit> a = new TreeBag<>(editsA),
@@ -49,26 +75,28 @@ public class EditExtractor {
 		b.forEach(System.out::println);
 	}
 
-	public Bag<Edit> extractEditsUsingCodeAlign(ASTNode from, ASTNode to) {
-		NodePairs pairs = getPairs(from, to);
+	public EditBag extractEditsUsingCodeAlign(ASTNode from, ASTNode to) {
+		NodePairs pairs = aligner.align(from, to);
+		References references = new References(pairs);
 
-		Bag<Edit> edits = new TreeBag<>();
+		EditBag edits = new EditBag();
 
 		from.recurse(n -> {
 			if (!pairs.containsFrom(n)) {
-				edits.add(new Deletion(getReferenceAsChildren(n)));
+				edits.add(new Deletion(references.asChildren(n)));
 			}
 		});
 		to.recurse(n -> {
 			if (!pairs.containsTo(n)) {
-				NodeReference reference = getInsertReference(n, pairs);
+				NodeReference reference = references.insertion(n);
 				if (reference instanceof ChildNodeReference && reference.value != null) {
 					// If this insertion has a non-null value, we split it into two insertions,
 					// one for the type and one for the value. The latter can only match if the
 					// former does, but this makes it possible to have a partially matching hint
 					// that inserts a node with the correct type, but either specifies a new
 					// value or specifies no value
-					NodeValueReference valueRef = ((ChildNodeReference) reference).decompose();
+					NodeValueReference valueRef =
+							references.decompose((ChildNodeReference) reference);
 					edits.add(new Insertion(valueRef.parent));
 					edits.add(new Insertion(valueRef));
 				} else {
@@ -79,7 +107,7 @@ public class EditExtractor {
 		from.recurse(n -> {
 			ASTNode pair = pairs.getFrom(n);
 			if (pair != null && !n.shallowEquals(pair, false)) {
-				edits.add(new Relabel(getReferenceAsChildren(n), pair.type, pair.value));
+				edits.add(new Relabel(references.asChildren(n), pair.type, pair.value));
 			}
 		});
 
@@ -88,16 +116,14 @@ public class EditExtractor {
 		return edits;
 	}
 
-	private static NodePairs getPairs(ASTNode from, ASTNode to) {
-		// Make renames as expensive as an insert/delete to require at least 1 child match
-		// before it will be cheaper to rename.
-		// TODO: There are some tradeoffs with using 1 or 2 in the second value; should explore
-		NodePairs pairs = new CodeAlignment(1, 2).align(from, to);
-		return pairs;
+	public static List<ASTNode> getInsertedAndRenamedNodes(ASTNode from, ASTNode to,
+			RatingConfig config) {
+		return getInsertedAndRenamedNodes(from, to, config.getTreeAligner());
 	}
 
-	public static List<ASTNode> getInsertedAndRenamedNodes(ASTNode from, ASTNode to) {
-		NodePairs pairs = getPairs(from, to);
+	public static List<ASTNode> getInsertedAndRenamedNodes(ASTNode from, ASTNode to,
+			TreeAligner aligner) {
+		NodePairs pairs = aligner.align(from, to);
 
 		List<ASTNode> inserted = new ArrayList<>();
 		to.recurse(n -> {
@@ -120,71 +146,156 @@ public class EditExtractor {
 		return new ChildNodeReference(node, getReference(node.parent()));
 	}
 
-	private static NodeReference getReferenceAsChildren(ASTNode node) {
-		if (node.parent() == null) return new RootNodeReference(node);
-		return new ChildNodeReference(node, getReferenceAsChildren(node.parent()));
-	}
+	/**
+	 * Builds the NodeReferences for a single extraction. References are memoized per node, so
+	 * siblings share the chain of references to their parents, rather than each rebuilding it up
+	 * to the root, and equal references are interned, so they are usually the same object.
+	 */
+	private class References {
+		private final BiMap<ASTNode, ASTNode> map;
+
+		private final Map<ASTNode, NodeReference> asChildren = new IdentityHashMap<>();
+		private final Map<ASTNode, NodeReference> insertions = new IdentityHashMap<>();
+		private final Map<NodeReference, NodeReference> interned = new HashMap<>();
+
+		References(BiMap<ASTNode, ASTNode> map) {
+			this.map = map;
+		}
+
+		private <T extends NodeReference> T intern(T reference) {
+			@SuppressWarnings("unchecked")
+			T existing = (T) interned.putIfAbsent(reference, reference);
+			return existing == null ? reference : existing;
+		}
+
+		/**
+		 * Returns a reference to the given node as a chain of child indices from the root.
+		 */
+		NodeReference asChildren(ASTNode node) {
+			NodeReference reference = asChildren.get(node);
+			if (reference != null) return reference;
+			// Climb to the nearest ancestor that already has a reference, and then build the
+			// references back down, without recursing
+			List<ASTNode> path = new ArrayList<>();
+			for (ASTNode n = node; n != null && !asChildren.containsKey(n); n = n.parent()) {
+				path.add(n);
+			}
+			for (int i = path.size() - 1; i >= 0; i--) {
+				ASTNode n = path.get(i);
+				reference = n.parent() == null ? intern(new RootNodeReference(n)) :
+					intern(new ChildNodeReference(n, asChildren.get(n.parent())));
+				asChildren.put(n, reference);
+			}
+			return reference;
+		}
 
-	// TODO: This is problematic because we lose insert order (e.g. +(a, b) == +(b, a)), which
-	// allows the possibility of an exact match of edits without actually matching. This still
-	// constitutes a partial match. How can we make +(a, b) match +(b) but not +(a, b) == +(b, a)?
-	private NodeReference getInsertReference(ASTNode node, BiMap<ASTNode, ASTNode> map) {
-		if (node.parent() == null) throw new RuntimeException("Root nodes cannot be inserted :/");
-		ASTNode parentPair = map.getTo(node.parent());
-		int index = node.index();
-		if (map != null && parentPair != null &&
-				!config.hasFixedChildren(parentPair.type, parentPair.parentType())) {
-			// If the node has a parent with a from-match, we look through its earlier siblings and
-			// find the first one with a match (not inserted or deleted) and we mark the node as
-			// inserted right after it
-			List<ASTNode> siblings = node.parent().children();
-			int originalIndex = index;
-			index = 0;
-			for (int i = originalIndex - 1; i >= 0; i--) {
-				ASTNode siblingFrom = map.getTo(siblings.get(i));
-				if (siblingFrom != null) {
-					index = siblingFrom.index() + 1;
-					break;
+		// TODO: This is problematic because we lose insert order (e.g. +(a, b) == +(b, a)), which
+		// allows the possibility of an exact match of edits without actually matching. This still
+		// constitutes a partial match. How can we make +(a, b) match +(b) but not
+		// +(a, b) == +(b, a)?
+		NodeReference insertion(ASTNode node) {
+			NodeReference reference = insertions.get(node);
+			if (reference != null) return reference;
+
+			if (node.parent() == null) {
+				throw new RuntimeException("Root nodes cannot be inserted :/");
+			}
+			ASTNode parentPair = map.getTo(node.parent());
+			int index = node.index();
+			if (map != null && parentPair != null &&
+					!config.hasFixedChildren(parentPair.type, parentPair.parentType())) {
+				// If the node has a parent with a from-match, we look through its earlier siblings
+				// and find the first one with a match (not inserted or deleted) and we mark the
+				// node as inserted right after it
+				List<ASTNode> siblings = node.parent().children();
+				int originalIndex = index;
+				index = 0;
+				for (int i = originalIndex - 1; i >= 0; i--) {
+					ASTNode siblingFrom = map.getTo(siblings.get(i));
+					if (siblingFrom != null) {
+						index = siblingFrom.index() + 1;
+						break;
+					}
 				}
+			} else {
+				index = node.index();
 			}
-		} else {
-			index = node.index();
+
+			// If possible, reference the parent pair in the from-AST; otherwise, continue to walk
+			// up the to-AST
+			NodeReference parentReference = parentPair != null ?
+						asChildren(parentPair) :
+						insertion(node.parent());
+			reference = intern(new ChildNodeReference(node, parentReference, index));
+			insertions.put(node, reference);
+			return reference;
 		}
 
-		// If possible, reference the parent pair in the from-AST; otherwise, continue to walk up
-		// the to-AST
-		NodeReference parentReference = parentPair != null ?
-					getReferenceAsChildren(parentPair) :
-					getInsertReference(node.parent(), map);
-		return new ChildNodeReference(node, parentReference, index);
+		NodeValueReference decompose(ChildNodeReference reference) {
+			ChildNodeReference withoutValue = intern(
+					new ChildNodeReference(reference.type, reference.parent, reference.index));
+			return intern(new NodeValueReference(withoutValue, reference.value));
+		}
 	}
 
 	public static abstract class Edit implements Comparable<Edit> {
 		final NodeReference node;
 
+		// Cached, since edits are hashed and compared many times when matching hints
+		private long fingerprint;
+		private boolean hasFingerprint;
+		private String orderingKey;
+
 		Edit(NodeReference node) {
 			this.node = node;
 		}
 
+		/**
+		 * Returns a 64-bit hash of this edit's type and everything it references, which is
+		 * computed once. Equal edits have equal fingerprints.
+		 */
+		public long fingerprint() {
+			if (!hasFingerprint) {
+				fingerprint = computeFingerprint();
+				hasFingerprint = true;
+			}
+			return fingerprint;
+		}
+
+		protected long computeFingerprint() {
+			return NodeReference.mix(getClass().getName().hashCode(), node.fingerprint());
+		}
+
+		/**
+		 * Returns the key used to sort edits for printing, which is their string representation,
+		 * built once.
+		 */
+		public String orderingKey() {
+			if (orderingKey == null) orderingKey = toString();
+			return orderingKey;
+		}
+
 		@Override
 		public boolean equals(Object obj) {
 			if (obj == null) return false;
 			if (obj == this) return true;
 			if (obj.getClass() != getClass()) return false;
 			Edit rhs = (Edit) obj;
+			if (fingerprint() != rhs.fingerprint()) return false;
 			return node.equals(rhs.node);
 		}
 
 		@Override
 		public int hashCode() {
-			return node.hashCode() * 13 + getClass().hashCode();
+			long fingerprint = fingerprint();
+			return (int) (fingerprint ^ (fingerprint >>> 32));
 		}
 
 		@Override
 		public int compareTo(Edit o) {
-			int c0 = toString().compareTo(o.toString());
+			int c0 = orderingKey().compareTo(o.orderingKey());
 			if (c0 != 0) return c0;
-			return Integer.compare(hashCode(), o.hashCode());
+			return Long.compare(fingerprint(), o.fingerprint());
 		}
 	}
 
@@ -234,12 +345,8 @@ public class EditExtractor {
 		}
 
 		@Override
-		public int hashCode() {
-			HashCodeBuilder builder = new HashCodeBuilder(17, 3);
-			builder.appendSuper(super.hashCode());
-			builder.append(type);
-			builder.append(value);
-			return builder.toHashCode();
+		protected long computeFingerprint() {
+			return NodeReference.mix(NodeReference.mix(super.computeFingerprint(), type), value);
 		}
 
 		@Override
@@ -271,8 +378,8 @@ public class EditExtractor {
 		}
 
 		@Override
-		public int hashCode() {
-			return super.hashCode() * 13 + newPosition.hashCode();
+		protected long computeFingerprint() {
+			return NodeReference.mix(super.computeFingerprint(), newPosition.fingerprint());
 		}
 
 		@Override
@@ -289,37 +396,61 @@ public class EditExtractor {
 			this(node.type, node.value);
 		}
 
+		// Cached, since the reference chain above a node is immutable
+		private long fingerprint;
+		private boolean hasFingerprint;
+
 		private NodeReference(String type, String value) {
 			this.type = type;
 			this.value = value;
 		}
 
+		/**
+		 * Returns a 64-bit hash of this reference, including the references it is relative to,
+		 * which is computed once. Equal references have equal fingerprints.
+		 */
+		long fingerprint() {
+			if (!hasFingerprint) {
+				fingerprint = computeFingerprint();
+				hasFingerprint = true;
+			}
+			return fingerprint;
+		}
+
+		protected long computeFingerprint() {
+			return mix(mix(getClass().getName().hashCode(), type), value);
+		}
+
+		// Mixes the given value into a 64-bit hash
+		static long mix(long hash, long value) {
+			hash = (hash ^ value) * 0x9E3779B97F4A7C15L;
+			return hash ^ (hash >>> 29);
+		}
+
+		static long mix(long hash, String value) {
+			return mix(hash, value == null ? Long.MIN_VALUE : value.hashCode());
+		}
+
 		@Override
 		public boolean equals(Object obj) {
 			if (obj == null) return false;
 			if (obj == this) return true;
 			if (obj.getClass() != getClass()) return false;
 			NodeReference rhs = (NodeReference) obj;
-			EqualsBuilder builder = new EqualsBuilder();
-			addEqualsFields(rhs, builder);
-			return builder.isEquals();
+			// Unequal references almost never share a fingerprint, and equal parent references
+			// from the same extraction are interned, so this rarely walks far up the chain
+			if (fingerprint() != rhs.fingerprint()) return false;
+			return fieldsEqual(rhs);
 		}
 
-		protected void addEqualsFields(NodeReference rhs, EqualsBuilder builder) {
-			builder.append(type, rhs.type);
-			builder.append(value, rhs.value);
+		protected boolean fieldsEqual(NodeReference rhs) {
+			return Objects.equals(type, rhs.type) && Objects.equals(value, rhs.value);
 		}
 
 		@Override
 		public int hashCode() {
-			HashCodeBuilder builder = new HashCodeBuilder(15, 3);
-			addHashCodeFields(builder);
-			return builder.toHashCode();
-		}
-
-		protected void addHashCodeFields(HashCodeBuilder builder) {
-			builder.append(type);
-			builder.append(value);
+			long fingerprint = fingerprint();
+			return (int) (fingerprint ^ (fingerprint >>> 32));
 		}
 	}
 
@@ -332,15 +463,13 @@ public class EditExtractor {
 		}
 
 		@Override
-		protected void addEqualsFields(NodeReference rhs, EqualsBuilder builder) {
-			super.addEqualsFields(rhs, builder);
-			builder.append(id, ((IDNodeReference) rhs).id);
+		protected boolean fieldsEqual(NodeReference rhs) {
+			return super.fieldsEqual(rhs) && Objects.equals(id, ((IDNodeReference) rhs).id);
 		}
 
 		@Override
-		protected void addHashCodeFields(HashCodeBuilder builder) {
-			super.addHashCodeFields(builder);
-			builder.append(id);
+		protected long computeFingerprint() {
+			return mix(super.computeFingerprint(), id);
 		}
 
 		@Override
@@ -371,28 +500,20 @@ public class EditExtractor {
 		}
 
 		@Override
-		protected void addEqualsFields(NodeReference rhs, EqualsBuilder builder) {
-			super.addEqualsFields(rhs, builder);
-			builder.append(parent, ((ChildNodeReference) rhs).parent);
-			builder.append(index, ((ChildNodeReference) rhs).index);
+		protected boolean fieldsEqual(NodeReference rhs) {
+			ChildNodeReference child = (ChildNodeReference) rhs;
+			return super.fieldsEqual(rhs) && index == child.index && parent.equals(child.parent);
 		}
 
 		@Override
-		protected void addHashCodeFields(HashCodeBuilder builder) {
-			super.addHashCodeFields(builder);
-			builder.append(parent);
-			builder.append(index);
+		protected long computeFingerprint() {
+			return mix(mix(super.computeFingerprint(), parent.fingerprint()), index);
 		}
 
 		@Override
 		public String toString() {
 			return String.format("%s->{%s#%02d}", parent.toString(), type, index);
 		}
-
-		NodeValueReference decompose() {
-			ChildNodeReference withoutValue = new ChildNodeReference(type, parent, index);
-			return new NodeValueReference(withoutValue, value);
-		}
 	}
 
 	static class NodeValueReference extends NodeReference {
@@ -410,15 +531,13 @@ public class EditExtractor {
 		}
 
 		@Override
-		protected void addEqualsFields(NodeReference rhs, EqualsBuilder builder) {
-			super.addEqualsFields(rhs, builder);
-			builder.append(parent, ((NodeValueReference) rhs).parent);
+		protected boolean fieldsEqual(NodeReference rhs) {
+			return super.fieldsEqual(rhs) && parent.equals(((NodeValueReference) rhs).parent);
 		}
 
 		@Override
-		protected void addHashCodeFields(HashCodeBuilder builder) {
-			super.addHashCodeFields(builder);
-			builder.append(parent);
+		protected long computeFingerprint() {
+			return mix(super.computeFingerprint(), parent.fingerprint());
 		}
 
 		@Override
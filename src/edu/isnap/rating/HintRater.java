@@ -13,12 +13,16 @@ import java.util.Set;
 import java.util.stream.Collectors;
 
 import org.apache.commons.collections4.Bag;
-import org.apache.commons.collections4.bag.TreeBag;
 import org.apache.commons.lang.StringUtils;
 
 import edu.isnap.node.ASTNode;
+import edu.isnap.node.ASTOverlay;
+import edu.isnap.node.AlignmentCache;
+import edu.isnap.node.TreeAligner;
+import edu.isnap.node.TreeWalker;
 import edu.isnap.rating.EditExtractor.Deletion;
 import edu.isnap.rating.EditExtractor.Edit;
+import edu.isnap.rating.PreparedGoldStandard.PreparedRequest;
 import edu.isnap.rating.data.GoldStandard;
 import edu.isnap.rating.data.HintGenerator;
 import edu.isnap.rating.data.HintOutcome;
@@ -40,7 +44,7 @@ public class HintRater {
 	public final static String TRAINING_FILE = "training.csv";
 	public final static String REQUEST_FILE = "requests.csv";
 
-	private final static String PARTIAL_UNSEEN_VALUE = "NEW_VALUE";
+	final static String PARTIAL_UNSEEN_VALUE = "NEW_VALUE";
 
 	public static String DataRootDir = "data" + File.separator;
 
@@ -74,7 +78,9 @@ public class HintRater {
 
 	public void rateDir(String path, RatingConfig config, boolean write)
 			throws FileNotFoundException, IOException {
-		GoldStandard standard = GoldStandard.parseSpreadsheet(path + GS_SPREADSHEET);
+		// The gold standard is prepared once and shared by all algorithms
+		PreparedGoldStandard standard = new PreparedGoldStandard(
+				GoldStandard.parseSpreadsheet(path + GS_SPREADSHEET), targetValidity, config);
 		File algorithmsFolder = new File(path, ALGORITHMS_DIR);
 		if (!algorithmsFolder.exists() || !algorithmsFolder.isDirectory()) {
 			throw new RuntimeException("Missing algorithms folder");
@@ -102,6 +108,13 @@ public class HintRater {
 	public void rateOneDir(String parentDir, String dir, RatingConfig config,
 			GoldStandard standard, boolean write)
 					throws IOException, FileNotFoundException {
+		rateOneDir(parentDir, dir, config,
+				new PreparedGoldStandard(standard, targetValidity, config), write);
+	}
+
+	public void rateOneDir(String parentDir, String dir, RatingConfig config,
+			PreparedGoldStandard standard, boolean write)
+					throws IOException, FileNotFoundException {
 		HintSet hintSet = HintSet.fromFolder(dir, config,
 				String.format("%s/%s/%s", parentDir, ALGORITHMS_DIR, dir));
 		System.out.println(hintSet.name);
@@ -119,24 +132,30 @@ public class HintRater {
 	}
 
 	public HintRatingSet rate(GoldStandard standard, HintSet hintSet) {
+		return rate(new PreparedGoldStandard(standard, targetValidity, hintSet.config), hintSet);
+	}
+
+	public HintRatingSet rate(PreparedGoldStandard standard, HintSet hintSet) {
 		RatingConfig config = hintSet.config;
+		if (standard.config != config || standard.targetValidity != targetValidity) {
+			throw new IllegalArgumentException(
+					"Gold standard was prepared for a different config or validity");
+		}
 		HintRatingSet ratingSet = new HintRatingSet(hintSet.name);
-		EditExtractor extractor = new EditExtractor(config, ASTNode.EMPTY_TYPE);
+		// Outcome alignments are only cached for this HintSet, since they are never reused by
+		// another
+		EditExtractor extractor = standard.createOutcomeExtractor();
 		for (String assignmentID : standard.getAssignmentIDs()) {
 			System.out.println("----- " + assignmentID + " -----");
 
 			for (String requestID : standard.getRequestIDs(assignmentID)) {
 
-				List<TutorHint> validHints = standard.getValidHints(assignmentID, requestID);
-
-				// Remove any hints that don't match the required validity
-				validHints.removeIf(hint -> !hint.validity.contains(targetValidity));
-
 				// Make sure there is at least one hint with the required validity; otherwise,
 				// assume there are no valid tutor hints and we should continue
-				if (validHints.isEmpty()) continue;
+				PreparedRequest request = standard.getRequest(assignmentID, requestID);
+				if (request == null) continue;
 
-				ASTNode fromNode = validHints.get(0).from;
+				ASTNode fromNode = request.from;
 				RequestRating requestRating = new RequestRating(requestID, assignmentID,
 						fromNode, config);
 
@@ -159,7 +178,7 @@ public class HintRater {
 				// First find full matches and remove any hints that match
 				for (int i = 0; i < unmatchedHints.size(); i++) {
 					HintOutcome hint = unmatchedHints.get(i);
-					HintRating rating = findMatchingEdit(validHints, hint, extractor, config);
+					HintRating rating = findMatchingEdit(request, hint, extractor);
 					if (rating != null) {
 						requestRating.add(rating);
 						unmatchedHints.remove(i--);
@@ -167,16 +186,17 @@ public class HintRater {
 				}
 				// Then find any partial matches in the remaining hints
 				for (HintOutcome hint : unmatchedHints) {
-					HintRating partialRating = findPartiallyMatchingEdit(
-							validHints, hint, config, extractor, true);
+					HintRating partialRating = findPartiallyMatchingEdit(request, hint, extractor,
+							true);
 					requestRating.add(partialRating);
 				}
 
 
-				requestRating.forEach(rating -> rating.addEdits(fromNode, extractor, config));
+				requestRating.forEach(rating ->
+						rating.addEdits(request.normalizedFromView, extractor, config));
 				requestRating.sort();
 				if (debug) {
-					requestRating.printRatings(validHints.get(0).from, config, validHints);
+					requestRating.printRatings(fromNode, config, request.validHints);
 				}
 				ratingSet.add(requestRating);
 				requestRating.printSummary();
@@ -219,8 +239,46 @@ public class HintRater {
 			}
 		}
 
+		pruneAddedNodesTo(from, to, config, config.getTreeAligner());
+	}
+
+	/**
+	 * Prunes nodes from the AST presented by the given "to" overlay based on the settings in the
+	 * config, like {@link HintRater#pruneNewNodesTo(ASTNode, ASTNode, RatingConfig)}, and returns
+	 * the result. Placeholder and childless nodes are hidden in the overlay first, so the AST is
+	 * only copied once.
+	 */
+	public static ASTNode pruneNewNodesTo(ASTNode from, ASTOverlay to, RatingConfig config) {
+		return pruneNewNodesTo(from, to, config, config.getTreeAligner());
+	}
+
+	/**
+	 * Like {@link HintRater#pruneNewNodesTo(ASTNode, ASTOverlay, RatingConfig)}, but finds the
+	 * nodes added to the "to" AST using the given aligner, e.g. an {@link AlignmentCache}.
+	 */
+	public static ASTNode pruneNewNodesTo(ASTNode from, ASTOverlay to, RatingConfig config,
+			TreeAligner aligner) {
+		hideChildlessNodes(to, config);
+		ASTNode pruned = to.copy();
+		pruneAddedNodesTo(from, pruned, config, aligner);
+		return pruned;
+	}
+
+	// Hides nodes in post-order, so children are pruned before parents
+	private static void hideChildlessNodes(ASTOverlay overlay, RatingConfig config) {
+		TreeWalker.postOrder(overlay.base, node -> {
+			if (node == overlay.base) return;
+			if (node.hasType(ASTNode.EMPTY_TYPE) ||
+					(overlay.childCount(node) == 0 && config.trimIfChildless(node.type()))) {
+				overlay.hide(node);
+			}
+		});
+	}
+
+	private static void pruneAddedNodesTo(ASTNode from, ASTNode to, RatingConfig config,
+			TreeAligner aligner) {
 		// Identify new nodes and prune their children.
-		List<ASTNode> addedNodes = EditExtractor.getInsertedAndRenamedNodes(from, to);
+		List<ASTNode> addedNodes = EditExtractor.getInsertedAndRenamedNodes(from, to, aligner);
 		// Reverse sort by depth to prune children first
 		addedNodes.sort(Comparator.comparing(node -> -node.depth()));
 		for (ASTNode node : addedNodes) {
@@ -233,47 +291,67 @@ public class HintRater {
 	}
 
 	public static ASTNode normalizeNodeValues(ASTNode root, RatingConfig config) {
-		root = root.copy();
-
-		// Create a list of nodes before iteration, since we'll be modifying children
-		List<ASTNode> nodes = new ArrayList<>();
-		root.recurse(node -> nodes.add(node));
+		return normalizedView(root, config).copy();
+	}
 
-		// First check if any node values should be normalized, as specified in the config
-		for (ASTNode node : nodes) {
+	/**
+	 * Returns an overlay of the given AST that presents its node values normalized, as specified
+	 * in the config, without copying it.
+	 */
+	public static ASTOverlay normalizedView(ASTNode root, RatingConfig config) {
+		ASTOverlay view = new ASTOverlay(root);
+		root.recurse(node -> {
 			String normalizedValue = config.normalizeNodeValue(node.type, node.value);
 			if (!StringUtils.equals(node.value, normalizedValue)) {
-				// If so, replace the node's value with the normalized one
-				node.replaceWith(new ASTNode(node.type, normalizedValue, node.id));
+				view.setValue(node, normalizedValue);
 			}
-		}
-
-		return root;
+		});
+		return view;
 	}
 
 	public static ASTNode normalizeNewValuesTo(ASTNode normFrom, ASTNode to, RatingConfig config,
 			String newValue) {
-		to = normalizeNodeValues(to, config);
+		return normalizedNewValuesView(new ASTOverlay(normFrom), to, config, newValue).copy();
+	}
+
+	/**
+	 * Returns an overlay of the given "to" AST that presents its node values normalized, and any
+	 * values not used in the normalized "from" AST replaced with newValue, without copying it.
+	 */
+	public static ASTOverlay normalizedNewValuesView(ASTOverlay normFrom, ASTNode to,
+			RatingConfig config, String newValue) {
+		return normalizedNewValuesView(usedValues(normFrom), to, config, newValue);
+	}
 
-		// Get a set of all the node values used in the original AST. We don't differentiate values
-		// by type, since multiple types can share values (e.g. varDecs and vars)
+	/**
+	 * Returns the set of all the node values used in the given normalized "from" AST. We don't
+	 * differentiate values by type, since multiple types can share values (e.g. varDecs and vars).
+	 */
+	public static Set<String> usedValues(ASTOverlay normFrom) {
 		Set<String> usedValues = new HashSet<>();
-		normFrom.recurse(node -> usedValues.add(node.value));
+		normFrom.recurse(node -> usedValues.add(normFrom.value(node)));
+		return usedValues;
+	}
 
-		// Create a list of nodes before iteration, since we'll be modifying children
-		List<ASTNode> toNodes = new ArrayList<>();
-		to.recurse(node -> toNodes.add(node));
+	/**
+	 * Like {@link HintRater#normalizedNewValuesView(ASTOverlay, ASTNode, RatingConfig, String)},
+	 * but takes the set of values used in the normalized "from" AST, so it can be reused.
+	 */
+	public static ASTOverlay normalizedNewValuesView(Set<String> usedValues, ASTNode to,
+			RatingConfig config, String newValue) {
+		ASTOverlay view = normalizedView(to, config);
 
-		for (ASTNode node : toNodes) {
-			if (node.parent() == null) continue;
+		to.recurse(node -> {
+			if (node == to) return;
 
-			if (node.value != null && !usedValues.contains(node.value)) {
+			String value = view.value(node);
+			if (value != null && !usedValues.contains(value)) {
 				// If this node's value is new, we may normalize it
 				boolean normalize = true;
 				// First check if it's a new numeric literal and the config wants to normalize it
 				if (config.useSpecificNumericLiterals()) {
 					try {
-						Double.parseDouble(node.value);
+						Double.parseDouble(value);
 						normalize = false;
 					} catch (NumberFormatException e) { }
 				}
@@ -282,53 +360,83 @@ public class HintRater {
 					// NOTE: When considering partial matches, we replace the value with the
 					// PARTIAL_UNSEEN_VALUE constant instead, but for full matching, it is important
 					// the unspecified values can match new values.
-					node.replaceWith(new ASTNode(node.type, newValue, node.id));
+					view.setValue(node, newValue);
 				}
 			}
-		}
+		});
 
-		return to;
+		return view;
 	}
 
 	public static HintRating findMatchingEdit(List<TutorHint> validHints, HintOutcome outcome,
 			EditExtractor extractor, RatingConfig config) {
 		if (validHints.isEmpty()) return new HintRating(outcome);
-		ASTNode fromNode = normalizeNodeValues(validHints.get(0).from, config);
-		ASTNode outcomeNode = normalizeNewValuesTo(fromNode, outcome.result, config, null);
-		pruneNewNodesTo(fromNode, outcomeNode, config);
-		for (TutorHint tutorHint : validHints) {
-			ASTNode tutorOutcomeNode = normalizeNewValuesTo(fromNode, tutorHint.to, config, null);
-			pruneNewNodesTo(fromNode, tutorOutcomeNode, config);
-			if (outcomeNode.equals(tutorOutcomeNode)) {
-				return new HintRating(outcome, tutorHint, MatchType.Full);
-			}
+		return findMatchingEdit(new PreparedRequest(validHints, config, extractor), outcome,
+				extractor);
+	}
 
-			if (outcome.result.equals(tutorHint.to)) {
-				System.out.printf("Matching outcome hint (%d):\n", outcome.id);
-				System.out.println(ASTNode.diff(fromNode, outcome.result, config));
-				System.out.printf("Difference in normalized nodes (%d vs %d):\n",
-						outcome.id, tutorHint.hintID);
-				System.out.println(ASTNode.diff(tutorOutcomeNode, outcomeNode, config, 2));
-				System.out.println("Tutor normalizing:");
-				System.out.println(ASTNode.diff(tutorHint.to, tutorOutcomeNode, config, 2));
-				System.out.println("Outcome normalizing:");
-				System.out.println(ASTNode.diff(outcome.result, outcomeNode, config, 2));
-				throw new RuntimeException("Normalized nodes should be equal if nodes are equal!");
-			}
-		}
-		return null;
+	/**
+	 * Returns a full match between the given outcome and the first valid tutor hint for the given
+	 * request with the same normalized, pruned outcome, or null if there is none. Only the
+	 * outcome is normalized and pruned here, with the aligner of the given extractor, since the
+	 * request's tutor hints are prepared once, and the matching hint is found by hash lookup.
+	 */
+	public static HintRating findMatchingEdit(PreparedRequest request, HintOutcome outcome,
+			EditExtractor extractor) {
+		RatingConfig config = request.config;
+		ASTNode fromNode = request.normalizedFrom;
+		// Pruning uses the extractor's aligner, so it shares any alignments it caches
+		ASTNode outcomeNode = pruneNewNodesTo(fromNode,
+				request.normalizeNewValues(outcome.result, null), config,
+				extractor.getAligner());
+		int match = request.indexOfPrunedTutorOutcome(outcomeNode);
+
+		// A tutor hint with the same outcome should also have the same normalized outcome, so no
+		// such hint should come before the match (or exist at all, if there is no match)
+		int sameOutcome = request.indexOfTutorOutcome(outcome.result);
+		if (sameOutcome >= 0 && (match < 0 || sameOutcome < match)) {
+			TutorHint tutorHint = request.validHints.get(sameOutcome);
+			ASTNode tutorOutcomeNode = request.getPrunedTutorOutcomes().get(sameOutcome);
+			System.out.printf("Matching outcome hint (%d):\n", outcome.id);
+			System.out.println(ASTNode.diff(fromNode, outcome.result, config));
+			System.out.printf("Difference in normalized nodes (%d vs %d):\n",
+					outcome.id, tutorHint.hintID);
+			System.out.println(ASTNode.diff(tutorOutcomeNode, outcomeNode, config, 2));
+			System.out.println("Tutor normalizing:");
+			System.out.println(ASTNode.diff(tutorHint.to, tutorOutcomeNode, config, 2));
+			System.out.println("Outcome normalizing:");
+			System.out.println(ASTNode.diff(outcome.result, outcomeNode, config, 2));
+			throw new RuntimeException("Normalized nodes should be equal if nodes are equal!");
+		}
+
+		if (match < 0) return null;
+		return new HintRating(outcome, request.validHints.get(match), MatchType.Full);
 	}
 
 	public static HintRating findPartiallyMatchingEdit(List<TutorHint> validHints,
 			HintOutcome outcome, RatingConfig config, EditExtractor extractor,
 			boolean errorOnFullMatch) {
 		if (validHints.isEmpty()) return new HintRating(outcome);
-		ASTNode fromNode = normalizeNodeValues(validHints.get(0).from, config);
+		return findPartiallyMatchingEdit(new PreparedRequest(validHints, config, extractor),
+				outcome, extractor, errorOnFullMatch);
+	}
 
-		// Run again to get a version that's unpruned
-		ASTNode outcomeNode = normalizeNewValuesTo(
-				fromNode, outcome.result, config, PARTIAL_UNSEEN_VALUE);
-		Bag<Edit> outcomeEdits = extractor.getEdits(fromNode, outcomeNode);
+	/**
+	 * Returns a rating of the given outcome as a partial match to the valid tutor hint for the
+	 * given request that shares the most edits with it, or as no match. Only the outcome's edits
+	 * are extracted here, with the given extractor, since the request's tutor hints are prepared
+	 * once.
+	 */
+	public static HintRating findPartiallyMatchingEdit(PreparedRequest request,
+			HintOutcome outcome, EditExtractor extractor, boolean errorOnFullMatch) {
+		RatingConfig config = request.config;
+		ASTNode fromNode = request.normalizedFrom;
+
+		// Run again to get a version that's unpruned, which is only read, so it is not copied
+		// unless some value was normalized
+		ASTNode outcomeNode = request.normalizeNewValues(
+				outcome.result, PARTIAL_UNSEEN_VALUE).toAST();
+		EditBag outcomeEdits = extractor.getEdits(fromNode, outcomeNode);
 		if (outcomeEdits.size() == 0) return new HintRating(outcome);
 
 		// There are three types of partial matches, only the last of which is detected here:
@@ -345,25 +453,25 @@ public class HintRater {
 		//    partial matches. We define meaningful here as "not only deletions," but of course this
 		//    is an imperfect definition.
 
-		// Sort but then reverse, so highest priority hints come first
-		Collections.sort(validHints);
-		Collections.reverse(validHints);
-
-		Bag<Edit> bestOverlap = new TreeBag<>();
+		// Highest priority hints come first, so they win ties. Only the size of each overlap is
+		// needed to pick the best one, so we count them without building them
+		List<EditBag> tutorEditsByPriority = request.getTutorEdits();
+		int bestOverlapSize = 0;
+		EditBag bestTutorEdits = null;
 		TutorHint bestHint = null;
-		for (TutorHint tutorHint : validHints) {
-			ASTNode tutorOutcomeNode = normalizeNewValuesTo(
-					fromNode, tutorHint.to, config, PARTIAL_UNSEEN_VALUE);
-			Bag<Edit> tutorEdits = extractor.getEdits(fromNode, tutorOutcomeNode);
+		for (int i = 0; i < request.hintsByPriority.size(); i++) {
+			TutorHint tutorHint = request.hintsByPriority.get(i);
+			EditBag tutorEdits = tutorEditsByPriority.get(i);
 //			if (outcome.id == 524813201 && tutorHint.hintID == 10005) {
 //				printPartialMatch(config, extractor, fromNode, outcomeNode, outcomeEdits, tutorHint, outcome);
 //			}
 			if (tutorEdits.size() == 0) continue;
-			Bag<Edit> overlap = new TreeBag<>(tutorEdits);
-			overlap.retainAll(outcomeEdits);
-			if (overlap.size() > bestOverlap.size()) {
-				if (errorOnFullMatch && overlap.size() == tutorEdits.size() &&
-						overlap.size() == outcomeEdits.size()) {
+			int overlapSize = tutorEdits.retainedCount(outcomeEdits);
+			if (overlapSize > bestOverlapSize) {
+				if (errorOnFullMatch && overlapSize == tutorEdits.size() &&
+						overlapSize == outcomeEdits.size()) {
+					ASTNode tutorOutcomeNode = request.normalizeNewValues(
+							tutorHint.to, PARTIAL_UNSEEN_VALUE).toAST();
 					System.out.println("Tutor hint: ");
 					System.out.println(ASTNode.diff(fromNode, tutorOutcomeNode, config));
 					System.out.println("Alg hint: ");
@@ -372,11 +480,14 @@ public class HintRater {
 							tutorEdits, outcomeEdits, "Tutor Hint", "Alg Hint");
 					throw new RuntimeException("Edits should not match if hint outcomes did not!");
 				}
-				bestOverlap = overlap;
+				bestOverlapSize = overlapSize;
+				bestTutorEdits = tutorEdits;
 				bestHint = tutorHint;
 			}
 		}
-		if (bestOverlap.size() == outcomeEdits.size()) {
+		if (bestOverlapSize == outcomeEdits.size()) {
+			Bag<Edit> bestOverlap = new EditBag(bestTutorEdits);
+			bestOverlap.retainAll(outcomeEdits);
 			// If the overlap is only deletions, we do not count this as a partial match
 			if (!bestOverlap.stream().allMatch(e -> e instanceof Deletion)) {
 //				printPartialMatch(config, extractor, fromNode, outcomeNode, outcomeEdits, bestHint,
@@ -391,7 +502,7 @@ public class HintRater {
 			ASTNode fromNode, ASTNode outcomeNode, Bag<Edit> outcomeEdits, TutorHint bestHint,
 			HintOutcome outcome) {
 //		if (!bestHint.validity.isAtLeast(Validity.MultipleTutors)) return;
-		Bag<Edit> tutorEdits = new TreeBag<>();
+		Bag<Edit> tutorEdits = new EditBag();
 		if (bestHint != null) {
 			System.out.printf("Tutor Hint (%s):\n", bestHint.hintID);
 			ASTNode tutorOutcomeNode = normalizeNewValuesTo(
@@ -584,7 +695,7 @@ public class HintRater {
 
 	public static class HintRating {
 		public final HintOutcome hint;
-		public final Bag<Edit> edits = new TreeBag<>();
+		public final Bag<Edit> edits = new EditBag();
 		public final TutorHint match;
 		public final MatchType matchType;
 
@@ -607,11 +718,19 @@ public class HintRater {
 		}
 
 		public void addEdits(ASTNode requestNode, EditExtractor extractor, RatingConfig config) {
+			addEdits(normalizedView(requestNode, config), extractor, config);
+		}
+
+		/**
+		 * Like {@link HintRating#addEdits(ASTNode, EditExtractor, RatingConfig)}, but takes the
+		 * normalized view of the request, e.g. from a {@link PreparedRequest}.
+		 */
+		public void addEdits(ASTOverlay normalizedRequest, EditExtractor extractor,
+				RatingConfig config) {
 			if (hint.result == null) return;
-			requestNode = normalizeNodeValues(requestNode, config);
-			ASTNode outcomeNode = normalizeNodeValues(hint.result, config);
 			edits.clear();
-			edits.addAll(extractor.extractEditsUsingCodeAlign(requestNode, outcomeNode));
+			edits.addAll(extractor.getEdits(
+					normalizedRequest, normalizedView(hint.result, config)));
 		}
 
 		public void addToSpreadsheet(Spreadsheet spreadsheet, int order, double totalWeight,
@@ -632,7 +751,7 @@ public class HintRater {
 			spreadsheet.put("valid", isValid());
 			spreadsheet.put("priority", priority);
 			spreadsheet.put("type", matchType.toString());
-			spreadsheet.put("outcome", hint.result == null ? "" : hint.result.toJSON().toString());
+			spreadsheet.put("outcome", hint.result == null ? "" : hint.result.toJSONString());
 			ColorStyle oldStyle = Diff.colorStyle;
 			Diff.colorStyle = ColorStyle.HTML;
 			spreadsheet.put("diff", hint.result == null ?
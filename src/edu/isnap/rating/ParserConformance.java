@@ -0,0 +1,356 @@
+package edu.isnap.rating;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.isnap.node.ASTNode;
+import edu.isnap.node.ASTSnapshot;
+import edu.isnap.node.JSONASTParser;
+
+/**
+ * Checks that the streaming {@link JSONASTParser} reads ASTs exactly as the org.json-based
+ * {@link ASTNode#parse(JSONObject)} does, comparing types, values, ids, child relations, source
+ * locations and the snapshot's correctness and source, and that it fails on the same input. It
+ * checks a fixed set of random JSON ASTs, which include null children, missing and partial
+ * "childrenOrder" arrays, malformed source locations, escaped strings and unknown fields, and
+ * every AST in each dataset (the "code" column of the training data and the "from" and "to"
+ * columns of the gold standard), if the dataset exists, reporting the time each parser takes. It
+ * fails if any AST differs.
+ */
+public class ParserConformance {
+
+	private final static int N_RANDOM_ASTS = 5000;
+	private final static long SEED = 1234;
+
+	public static void main(String[] args) throws IOException {
+		int different = checkRandom();
+		if (new File(HintRater.isnapF16F17Dir()).exists()) {
+			different += check(HintRater.isnapF16F17Dir());
+		}
+		if (new File(HintRater.itapS16Dir()).exists()) different += check(HintRater.itapS16Dir());
+		if (different > 0) {
+			System.out.println("FAILED: " + different + " ASTs were parsed differently");
+			System.exit(1);
+		}
+		System.out.println("Passed");
+	}
+
+	/**
+	 * Checks the fixed set of random JSON ASTs, parsing each from a String and from a Reader, and
+	 * returns the number that were parsed differently.
+	 */
+	public static int checkRandom() throws IOException {
+		Random random = new Random(SEED);
+		long[] times = new long[2];
+		int different = 0, failed = 0;
+		// Both parsers print the stack trace of each malformed source location they skip, which
+		// would drown out the results
+		PrintStream err = System.err;
+		System.setErr(new PrintStream(new ByteArrayOutputStream()));
+		try {
+			for (int i = 0; i < N_RANDOM_ASTS; i++) {
+				StringBuilder sb = new StringBuilder();
+				// Some ASTs are large enough to cross the boundaries of the Reader's buffer
+				randomNode(random, sb, true, random.nextInt(20) == 0 ? 5 : 3);
+				String json = sb.toString();
+				String error = compare(json, times);
+				if (error != null && error.startsWith("both failed")) {
+					failed++;
+					error = null;
+				}
+				if (error == null) error = compareReader(json);
+				if (error != null) {
+					different++;
+					if (different <= 5) System.out.printf("Mismatch (%s):\n%s\n", error, json);
+				}
+			}
+		} finally {
+			System.setErr(err);
+		}
+		System.out.printf("random: %d/%d ASTs differ (%d invalid); org.json %.1fms, " +
+				"streaming %.1fms\n", different, N_RANDOM_ASTS, failed, times[0] / 1e6,
+				times[1] / 1e6);
+		return different;
+	}
+
+	public static int check(String dataset) throws IOException {
+		System.out.println(dataset);
+		return check(dataset + HintRater.TRAINING_FILE, "code") +
+				check(dataset + HintRater.GS_SPREADSHEET, "from", "to");
+	}
+
+	private static int check(String path, String... columns) throws IOException {
+		if (!new File(path).exists()) return 0;
+		InputStream in = new FileInputStream(path);
+		if (path.toLowerCase().endsWith(".gz")) in = new GZIPInputStream(in);
+		CSVParser parser = new CSVParser(new InputStreamReader(in), CSVFormat.DEFAULT.withHeader());
+		long[] times = new long[2];
+		int checked = 0, different = 0;
+		for (CSVRecord record : parser) {
+			for (String column : columns) {
+				String json = record.get(column);
+				if (json.isEmpty()) continue;
+				checked++;
+				String error = compare(json, times);
+				if (error != null) {
+					different++;
+					if (different <= 5) {
+						System.out.printf("Mismatch in %s, row %d (%s):\n%s\n", column,
+								record.getRecordNumber(), error, json);
+					}
+				}
+			}
+		}
+		parser.close();
+		System.out.printf("\t%s: %d/%d ASTs differ; org.json %.1fms, streaming %.1fms\n",
+				new File(path).getName(), different, checked, times[0] / 1e6, times[1] / 1e6);
+		return different;
+	}
+
+	/**
+	 * Parses the given JSON with both parsers, adding the time each took to times, and returns
+	 * null if they agree, or a description of how they differ. If both fail, the description
+	 * starts with "both failed".
+	 */
+	private static String compare(String json, long[] times) {
+		ASTNode expected;
+		boolean expectedCorrect;
+		String expectedSource;
+		long time = System.nanoTime();
+		try {
+			JSONObject object = new JSONObject(json);
+			expected = ASTNode.parse(object);
+			// Older versions used "correct"
+			expectedCorrect = object.optBoolean("isCorrect") || object.optBoolean("correct");
+			expectedSource = object.optString("source");
+		} catch (JSONException e) {
+			expected = null;
+			expectedCorrect = false;
+			expectedSource = e.getMessage();
+		}
+		times[0] += System.nanoTime() - time;
+
+		ASTSnapshot actual;
+		String actualError = null;
+		time = System.nanoTime();
+		try {
+			actual = ASTSnapshot.parse(json);
+		} catch (JSONException e) {
+			actual = null;
+			actualError = e.getMessage();
+		}
+		times[1] += System.nanoTime() - time;
+
+		if (expected == null) {
+			return actual == null ? "both failed: " + expectedSource :
+				"org.json failed (" + expectedSource + "), but streaming did not";
+		}
+		if (actual == null) return "streaming failed (" + actualError + "), but org.json did not";
+		if (!conforms(expected, actual)) return "different ASTs";
+		if (expectedCorrect != actual.isCorrect) return "different correctness";
+		if (!expectedSource.equals(actual.source)) return "different sources";
+		return null;
+	}
+
+	// Checks that reading the JSON from a Reader, in buffered chunks, gives the same AST as
+	// reading it from a String
+	private static String compareReader(String json) throws IOException {
+		ASTSnapshot fromString, fromReader;
+		try {
+			fromString = ASTSnapshot.parse(json);
+		} catch (JSONException e) {
+			fromString = null;
+		}
+		try {
+			fromReader = JSONASTParser.parseSnapshot(new StringReader(json), null);
+		} catch (JSONException e) {
+			fromReader = null;
+		}
+		if (fromString == null || fromReader == null) {
+			return fromString == fromReader ? null : "only one of String and Reader failed";
+		}
+		if (!conforms(fromString, fromReader) || fromString.isCorrect != fromReader.isCorrect ||
+				!fromString.source.equals(fromReader.source)) {
+			return "String and Reader differ";
+		}
+		return null;
+	}
+
+	private static boolean conforms(ASTNode expected, ASTNode actual) {
+		return expected.equals(actual, true, true) && sameLocations(expected, actual, true);
+	}
+
+	private static boolean sameLocations(ASTNode expected, ASTNode actual, boolean isRoot) {
+		// Snapshots do not keep the source locations of their root
+		if (!isRoot && (!sameLocation(expected.startSourceLocation, actual.startSourceLocation) ||
+				!sameLocation(expected.endSourceLocation, actual.endSourceLocation))) {
+			return false;
+		}
+		for (int i = 0; i < expected.children().size(); i++) {
+			if (!sameLocations(expected.children().get(i), actual.children().get(i), false)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean sameLocation(ASTNode.SourceLocation a, ASTNode.SourceLocation b) {
+		return Objects.equals(a == null ? null : a.toString(), b == null ? null : b.toString());
+	}
+
+	private final static String[] TYPES = { "script", "Name", "literal", "snapshot", "null" };
+	private final static String[] STRINGS = { "x", "", "null", "two words", "quote\"d",
+			"back\\slash", "line\nbreak", "tab\there", "caf\u00e9", "\u2603", "a/b", "{[,:]}" };
+	private final static String[] RELATIONS = { "0", "1", "2", "body", "cond", "else", "a\"b",
+			"c\\d", "\u00e9" };
+	private final static String[] MALFORMED_LOCATIONS = { "[1]", "[]", "\"1,2\"", "null",
+			"[1, \"x\"]", "[\"3\", \"4\"]", "[1.5, 2]", "{\"a\": 1}", "[true, 2]",
+			"[1, 2, 3]", "[[1], 2]" };
+
+	/**
+	 * Appends a random JSON AST node, with its fields in a random order and random whitespace
+	 * between its tokens. Its children are at most the given depth below it.
+	 */
+	private static void randomNode(Random random, StringBuilder sb, boolean isRoot, int depth) {
+		List<String> fields = new ArrayList<>();
+		// Types are usually present, but their absence should fail in both parsers
+		if (random.nextInt(1000) != 0) {
+			fields.add(field(random, "type", quote(random, TYPES[random.nextInt(TYPES.length)])));
+		}
+		if (random.nextBoolean()) fields.add(field(random, "value", randomString(random)));
+		if (random.nextInt(3) == 0) fields.add(field(random, "id", randomString(random)));
+		if (random.nextInt(3) == 0) {
+			fields.add(field(random, "sourceStart", randomLocation(random)));
+		}
+		if (random.nextInt(3) == 0) fields.add(field(random, "sourceEnd", randomLocation(random)));
+		if (random.nextInt(20) == 0) {
+			fields.add(field(random, "extra", "[1, {\"type\": \"x\"}, \"}\"]"));
+		}
+		if (isRoot) {
+			if (random.nextBoolean()) {
+				fields.add(field(random, random.nextBoolean() ? "isCorrect" : "correct",
+						random.nextBoolean() ? "true" : "false"));
+			}
+			if (random.nextBoolean()) fields.add(field(random, "source", randomString(random)));
+		}
+
+		if (depth > 0 && random.nextInt(4) != 0) {
+			List<String> relations = new ArrayList<>();
+			int nChildren = random.nextInt(RELATIONS.length + 1);
+			List<String> candidates = new ArrayList<>(Arrays.asList(RELATIONS));
+			Collections.shuffle(candidates, random);
+			StringBuilder children = new StringBuilder("{");
+			for (int i = 0; i < nChildren; i++) {
+				String relation = candidates.get(i);
+				relations.add(relation);
+				if (i > 0) children.append(',');
+				children.append(space(random)).append(quote(random, relation)).append(':')
+					.append(space(random));
+				int kind = random.nextInt(10);
+				if (kind == 0) {
+					children.append("null");
+				} else if (kind == 1 && random.nextInt(50) == 0) {
+					// Not an object, which is only an error if the child is used
+					children.append("42");
+				} else {
+					randomNode(random, children, false, depth - 1);
+				}
+			}
+			children.append(space(random)).append('}');
+			fields.add(field(random, "children", children.toString()));
+
+			// Without an order, the children are added in the order org.json's HashMap uses.
+			// Otherwise, the order may also leave out children, or name relations with no child,
+			// which are added as null children
+			if (random.nextInt(3) != 0) {
+				List<String> order = new ArrayList<>(relations);
+				Collections.shuffle(order, random);
+				if (!order.isEmpty() && random.nextInt(10) == 0) order.remove(0);
+				if (random.nextInt(10) == 0) order.add("missing");
+				StringBuilder array = new StringBuilder("[");
+				for (int i = 0; i < order.size(); i++) {
+					if (i > 0) array.append(',').append(space(random));
+					array.append(quote(random, order.get(i)));
+				}
+				fields.add(field(random, "childrenOrder", array.append(']').toString()));
+			}
+		}
+
+		Collections.shuffle(fields, random);
+		sb.append('{');
+		for (int i = 0; i < fields.size(); i++) {
+			if (i > 0) sb.append(',');
+			sb.append(space(random)).append(fields.get(i));
+		}
+		sb.append(space(random)).append('}');
+	}
+
+	private static String field(Random random, String key, String json) {
+		return quote(random, key) + space(random) + ':' + space(random) + json;
+	}
+
+	private static String randomString(Random random) {
+		return quote(random, STRINGS[random.nextInt(STRINGS.length)]);
+	}
+
+	private static String randomLocation(Random random) {
+		if (random.nextInt(3) == 0) {
+			return MALFORMED_LOCATIONS[random.nextInt(MALFORMED_LOCATIONS.length)];
+		}
+		return "[" + random.nextInt(100) + "," + space(random) + random.nextInt(100) + "]";
+	}
+
+	private static String space(Random random) {
+		switch (random.nextInt(8)) {
+		case 0: return " ";
+		case 1: return "\n\t";
+		case 2: return "\r\n  ";
+		default: return "";
+		}
+	}
+
+	/**
+	 * Returns the given string as a JSON string, escaping characters in one of the ways JSON
+	 * allows, chosen at random.
+	 */
+	private static String quote(Random random, String string) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			boolean unicode = random.nextInt(4) == 0;
+			if (c == '"' || c == '\\') {
+				sb.append(unicode ? String.format("\\u%04x", (int) c) : "\\" + c);
+			} else if (c == '\n') {
+				sb.append(unicode ? "\\u000A" : "\\n");
+			} else if (c == '\t') {
+				sb.append(unicode ? "\\u0009" : "\\t");
+			} else if (c == '/' && random.nextBoolean()) {
+				sb.append("\\/");
+			} else if (c > 127 && unicode) {
+				sb.append(String.format("\\u%04X", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
@@ -0,0 +1,222 @@
+package edu.isnap.rating;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.isnap.node.ASTNode;
+import edu.isnap.node.ASTOverlay;
+import edu.isnap.node.AlignmentCache;
+import edu.isnap.rating.data.GoldStandard;
+import edu.isnap.rating.data.TutorHint;
+import edu.isnap.rating.data.TutorHint.Validity;
+import edu.isnap.util.map.ListMap;
+
+/**
+ * A {@link GoldStandard} prepared for rating hints with a given config and target validity. The
+ * tutor-side work of rating a hint (normalizing the request and tutor hints, pruning the tutor
+ * hints and extracting their edits) depends only on the request, so it is done once for each
+ * request, the first time it is rated, rather than once for each hint rated. A prepared gold
+ * standard can be used to rate any number of HintSets that use the same config.
+ *
+ * The tutor-side alignments are made with one {@link AlignmentCache}, which only grows with the
+ * gold standard, so it is not thread-safe. Alignments with the hints being rated should be made
+ * with an extractor from {@link #createOutcomeExtractor()}, scoped to one HintSet, so that they
+ * are not kept for the lifetime of the prepared gold standard.
+ */
+public class PreparedGoldStandard {
+
+	public final GoldStandard standard;
+	public final Validity targetValidity;
+	public final RatingConfig config;
+	/** The extractor used for the tutor hints, whose alignments are cached */
+	public final EditExtractor extractor;
+
+	private final AlignmentCache alignments;
+	private final Map<String, Map<String, PreparedRequest>> requests = new HashMap<>();
+
+	public PreparedGoldStandard(GoldStandard standard, Validity targetValidity,
+			RatingConfig config) {
+		this.standard = standard;
+		this.targetValidity = targetValidity;
+		this.config = config;
+		// The same pairs of ASTs (e.g. a request and each of its tutor hints) are aligned more
+		// than once, for pruning and for extracting edits, so alignments are cached
+		this.alignments = new AlignmentCache(config.getTreeAligner());
+		this.extractor = new EditExtractor(config, alignments, ASTNode.EMPTY_TYPE);
+	}
+
+	public Set<String> getAssignmentIDs() {
+		return standard.getAssignmentIDs();
+	}
+
+	public Set<String> getRequestIDs(String assignmentID) {
+		return standard.getRequestIDs(assignmentID);
+	}
+
+	/** Returns the cache of the tutor-side alignments. */
+	public AlignmentCache getAlignments() {
+		return alignments;
+	}
+
+	/**
+	 * Returns a new extractor for the outcomes of the hints being rated, with its own
+	 * {@link AlignmentCache}, which is discarded along with the extractor.
+	 */
+	public EditExtractor createOutcomeExtractor() {
+		return new EditExtractor(config, new AlignmentCache(config.getTreeAligner()),
+				ASTNode.EMPTY_TYPE);
+	}
+
+	/**
+	 * Returns the prepared request with the given IDs, or null if it has no tutor hints with the
+	 * target validity.
+	 */
+	public PreparedRequest getRequest(String assignmentID, String requestID) {
+		Map<String, PreparedRequest> assignmentRequests =
+				requests.computeIfAbsent(assignmentID, id -> new HashMap<>());
+		PreparedRequest request = assignmentRequests.get(requestID);
+		if (request == null) {
+			List<TutorHint> validHints = standard.getValidHints(assignmentID, requestID);
+			// Remove any hints that don't match the required validity
+			validHints.removeIf(hint -> !hint.validity.contains(targetValidity));
+			if (validHints.isEmpty()) return null;
+			request = new PreparedRequest(validHints, config, extractor);
+			assignmentRequests.put(requestID, request);
+		}
+		return request;
+	}
+
+	/**
+	 * The tutor hints for one request, along with the tutor-side ASTs and edits needed to find
+	 * full and partial matches for hints generated for that request. The tutor ASTs are pruned
+	 * and their edits extracted when they are first needed.
+	 */
+	public static class PreparedRequest {
+
+		/** The valid tutor hints, in the order of the gold standard */
+		public final List<TutorHint> validHints;
+		/** The valid tutor hints, with the highest priority hints first */
+		public final List<TutorHint> hintsByPriority;
+		/** The original request AST */
+		public final ASTNode from;
+
+		final RatingConfig config;
+		final EditExtractor extractor;
+		final ASTOverlay normalizedFromView;
+		final ASTNode normalizedFrom;
+		final Set<String> usedValues;
+
+		private final List<ASTNode> tutorOutcomes = new ArrayList<>();
+		private List<ASTNode> prunedTutorOutcomes;
+		private List<EditBag> tutorEdits;
+		// Indexes of the outcomes above (and so of validHints) by their structural hashes, in
+		// ascending order
+		private final ListMap<Integer, Integer> tutorOutcomeIndex = new ListMap<>();
+		private ListMap<Integer, Integer> prunedTutorOutcomeIndex;
+
+		/**
+		 * Prepares the given tutor hints, which must all share the same non-empty request.
+		 */
+		public PreparedRequest(List<TutorHint> validHints, RatingConfig config,
+				EditExtractor extractor) {
+			this.validHints = Collections.unmodifiableList(new ArrayList<>(validHints));
+			this.config = config;
+			this.extractor = extractor;
+
+			from = validHints.get(0).from;
+			// The normalized from node is only read, so it is the original AST unless some value
+			// was normalized
+			normalizedFromView = HintRater.normalizedView(from, config);
+			normalizedFrom = normalizedFromView.toAST();
+			usedValues = HintRater.usedValues(normalizedFromView);
+
+			// Sort but then reverse, so highest priority hints come first
+			List<TutorHint> sorted = new ArrayList<>(validHints);
+			Collections.sort(sorted);
+			Collections.reverse(sorted);
+			hintsByPriority = Collections.unmodifiableList(sorted);
+
+			for (TutorHint tutorHint : validHints) {
+				tutorOutcomeIndex.add(tutorHint.to.structuralHash(), tutorOutcomes.size());
+				tutorOutcomes.add(tutorHint.to);
+			}
+		}
+
+		/**
+		 * Returns the normalized, pruned outcome of each hint in {@link #validHints}, in the same
+		 * order, for finding full matches.
+		 */
+		List<ASTNode> getPrunedTutorOutcomes() {
+			if (prunedTutorOutcomes == null) {
+				prunedTutorOutcomes = new ArrayList<>();
+				prunedTutorOutcomeIndex = new ListMap<>();
+				for (TutorHint tutorHint : validHints) {
+					ASTNode pruned = HintRater.pruneNewNodesTo(normalizedFrom,
+							normalizeNewValues(tutorHint.to, null), config,
+							extractor.getAligner());
+					prunedTutorOutcomeIndex.add(pruned.structuralHash(),
+							prunedTutorOutcomes.size());
+					prunedTutorOutcomes.add(pruned);
+				}
+			}
+			return prunedTutorOutcomes;
+		}
+
+		/**
+		 * Returns the index of the first hint in {@link #validHints} whose normalized, pruned
+		 * outcome equals the given AST, or -1 if there is none. Hints are looked up by their
+		 * structural hash, so only hints that are likely to match are compared.
+		 */
+		int indexOfPrunedTutorOutcome(ASTNode prunedOutcome) {
+			getPrunedTutorOutcomes();
+			return indexOf(prunedTutorOutcomeIndex, prunedTutorOutcomes, prunedOutcome);
+		}
+
+		/**
+		 * Returns the index of the first hint in {@link #validHints} whose original outcome
+		 * equals the given AST, or -1 if there is none.
+		 */
+		int indexOfTutorOutcome(ASTNode outcome) {
+			return indexOf(tutorOutcomeIndex, tutorOutcomes, outcome);
+		}
+
+		private int indexOf(ListMap<Integer, Integer> index, List<ASTNode> outcomes,
+				ASTNode outcome) {
+			List<Integer> candidates = index.get(outcome.structuralHash());
+			if (candidates == null) return -1;
+			for (int i : candidates) {
+				if (outcome.equals(outcomes.get(i))) return i;
+			}
+			return -1;
+		}
+
+		/**
+		 * Returns the edits made by each hint in {@link #hintsByPriority}, in the same order, for
+		 * finding partial matches.
+		 */
+		List<EditBag> getTutorEdits() {
+			if (tutorEdits == null) {
+				tutorEdits = new ArrayList<>();
+				for (TutorHint tutorHint : hintsByPriority) {
+					tutorEdits.add(extractor.getEdits(normalizedFrom,
+							normalizeNewValues(tutorHint.to, HintRater.PARTIAL_UNSEEN_VALUE)
+							.toAST()));
+				}
+			}
+			return tutorEdits;
+		}
+
+		/**
+		 * Returns an overlay of the given AST that presents its values normalized for this
+		 * request, as {@link HintRater#normalizedNewValuesView(ASTOverlay, ASTNode,
+		 * RatingConfig, String)} would.
+		 */
+		ASTOverlay normalizeNewValues(ASTNode to, String newValue) {
+			return HintRater.normalizedNewValuesView(usedValues, to, config, newValue);
+		}
+	}
+}
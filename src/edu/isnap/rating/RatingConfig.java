@@ -5,6 +5,9 @@ import java.util.HashSet;
 import java.util.Set;
 
 import edu.isnap.node.ASTNode;
+import edu.isnap.node.CodeAlignment;
+import edu.isnap.node.GreedyTreeAlignment;
+import edu.isnap.node.TreeAligner;
 
 public interface RatingConfig {
 
@@ -58,6 +61,74 @@ public interface RatingConfig {
 		return false;
 	}
 
+	/**
+	 * Should return the TreeAligner used to pair the nodes of two ASTs when extracting the edits
+	 * between them. By default, this is a {@link CodeAlignment}, but languages whose ASTs have a
+	 * different typical shape may be better served by another engine, e.g.
+	 * {@link edu.isnap.node.ZhangShashaAlignment}. See {@link TreeAlignerBenchmark}.
+	 */
+	public default TreeAligner getTreeAligner() {
+		// Make renames as expensive as an insert/delete to require at least 1 child match
+		// before it will be cheaper to rename.
+		// TODO: There are some tradeoffs with using 1 or 2 in the second value; should explore
+		return new CodeAlignment(1, 2);
+	}
+
+	/**
+	 * Returns a config that behaves like the given one, except that pairs of ASTs where either
+	 * has more than sizeThreshold nodes are aligned with a {@link GreedyTreeAlignment}, rather
+	 * than with the given config's aligner. This is far faster for ASTs with thousands of nodes
+	 * (e.g. whole Java files), but the greedy alignment is approximate, and the edits extracted
+	 * from it often differ from the exact ones, which changes which hints match (see
+	 * {@link TreeAlignerBenchmark}). It is therefore never used unless requested this way, e.g.
+	 * with {@link GreedyTreeAlignment#DEFAULT_SIZE_THRESHOLD}.
+	 */
+	public static RatingConfig withGreedyAlignment(RatingConfig config, int sizeThreshold) {
+		TreeAligner aligner = TreeAligner.bySize(config.getTreeAligner(),
+				new GreedyTreeAlignment(1, 2), sizeThreshold);
+		return new RatingConfig() {
+			@Override
+			public boolean useSpecificNumericLiterals() {
+				return config.useSpecificNumericLiterals();
+			}
+
+			@Override
+			public boolean trimIfChildless(String type) {
+				return config.trimIfChildless(type);
+			}
+
+			@Override
+			public boolean trimIfParentIsAdded(String type, String value) {
+				return config.trimIfParentIsAdded(type, value);
+			}
+
+			@Override
+			public boolean hasFixedChildren(String type, String parentType) {
+				return config.hasFixedChildren(type, parentType);
+			}
+
+			@Override
+			public boolean nodeTypeHasBody(String type) {
+				return config.nodeTypeHasBody(type);
+			}
+
+			@Override
+			public String normalizeNodeValue(String type, String value) {
+				return config.normalizeNodeValue(type, value);
+			}
+
+			@Override
+			public boolean rateOnlyTopWeightedHints() {
+				return config.rateOnlyTopWeightedHints();
+			}
+
+			@Override
+			public TreeAligner getTreeAligner() {
+				return aligner;
+			}
+		};
+	}
+
 	public final static RatingConfig Default = new RatingConfig() {
 
 		@Override
@@ -266,28 +337,45 @@ public interface RatingConfig {
 					("Name".equals(type) && value == null);
 		}
 
+		// Kept as sets, rather than rebuilt on each call, since these are checked for every node
+		private final Set<String> variableChildrenTypes = new HashSet<>(Arrays.asList(
+				new String[] {
+						"Modifier",
+						"Operator",
+						"NameExpr",
+						"Parameter",
+						"IntegerLiteralExpr",
+						"VoidType",
+						"PrimitiveType",
+				}
+			));
+
 		@Override
 		public boolean trimIfChildless(String type) {
-			String[] variableChildrenTypes = {"Modifier", "Operator", "NameExpr",
-					"Parameter", "IntegerLiteralExpr", "VoidType", "PrimitiveType"};
-			return Arrays.asList(variableChildrenTypes).contains(type);
+			return variableChildrenTypes.contains(type);
 		}
 
 		@Override
 		public boolean nodeTypeHasBody(String type) {
-			String[] variableChildrenTypes = {"Modifier", "Operator", "NameExpr",
-					"Parameter", "IntegerLiteralExpr", "VoidType", "PrimitiveType"};
-			return !Arrays.asList(variableChildrenTypes).contains(type);
+			return !variableChildrenTypes.contains(type);
 		}
 
+		private final Set<String> flexibleChildrenTypes = new HashSet<>(Arrays.asList(
+				new String[] {
+						"ClassOrInterface",
+						"ConstructorDeclaration",
+						"BlockStmt",
+						"IfStmt",
+						"MethodCallExpr",
+						"MethodDeclaration",
+				}
+			));
 
 		@Override
 		public boolean hasFixedChildren(String type, String parentType) {
 			// In Python, only the list type has flexible children, and even some of those are
 			// almost always fixed (at least for simple student programs)
-			String[] variableChildrenTypes = {"ClassOrInterface", "ConstructorDeclaration", "BlockStmt",
-					"IfStmt", "MethodCallExpr", "MethodDeclaration"};
-			return Arrays.asList(variableChildrenTypes).contains(type);
+			return flexibleChildrenTypes.contains(type);
 		}
 
 		@Override
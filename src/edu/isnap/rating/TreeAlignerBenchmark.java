@@ -0,0 +1,149 @@
+package edu.isnap.rating;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.collections4.Bag;
+
+import edu.isnap.node.ASTNode;
+import edu.isnap.node.CodeAlignment;
+import edu.isnap.node.GreedyTreeAlignment;
+import edu.isnap.node.TreeAligner;
+import edu.isnap.node.ZhangShashaAlignment;
+import edu.isnap.rating.EditExtractor.Edit;
+import edu.isnap.rating.data.GoldStandard;
+import edu.isnap.rating.data.TutorHint;
+
+/**
+ * Compares the speed of the available {@link TreeAligner}s on the pairs of ASTs that are aligned
+ * when rating hints (each hint request and the tutor hints for it), so that the fastest engine can
+ * be chosen for each language in its {@link RatingConfig}. For approximate engines, it also reports
+ * how often the edits they extract differ from those of the exact alignment.
+ *
+ * On the fixed set of large random pairs below, the {@link GreedyTreeAlignment} is about 20 times
+ * faster than the exact {@link CodeAlignment}, and its reward is within 0.2% of the exact one, but
+ * the edits extracted from it differ for 40 of the 50 pairs, and 74.8% of the exact edits change
+ * (not for about 1% of pairs, as was first reported). So no config uses it by default; it must be
+ * requested with {@link RatingConfig#withGreedyAlignment(RatingConfig, int)}.
+ */
+public class TreeAlignerBenchmark {
+
+	private final static int WARMUP_ROUNDS = 2, TIMED_ROUNDS = 5;
+	private final static int N_LARGE_PAIRS = 50;
+	private final static long SEED = 1234;
+
+	public static void main(String[] args) throws FileNotFoundException, IOException {
+		Map<String, TreeAligner> aligners = new LinkedHashMap<>();
+		aligners.put("CodeAlignment", new CodeAlignment(1, 2));
+		aligners.put("ZhangShasha", new ZhangShashaAlignment(1, 2));
+		aligners.put("Greedy", new GreedyTreeAlignment(1, 2));
+
+		if (new File(HintRater.isnapF16F17Dir()).exists()) {
+			List<ASTNode[]> pairs = readPairs(HintRater.isnapF16F17Dir());
+			benchmark("isnapF16F17", pairs, aligners);
+			compareEdits("isnapF16F17", pairs, RatingConfig.Snap,
+					new CodeAlignment(1, 2), new GreedyTreeAlignment(1, 2));
+		}
+		if (new File(HintRater.itapS16Dir()).exists()) {
+			List<ASTNode[]> pairs = readPairs(HintRater.itapS16Dir());
+			benchmark("itapS16", pairs, aligners);
+			compareEdits("itapS16", pairs, RatingConfig.Python,
+					new CodeAlignment(1, 2), new GreedyTreeAlignment(1, 2));
+		}
+
+		// The GreedyTreeAlignment is only used for ASTs larger than its size threshold, which the
+		// datasets rarely have, so it is also compared on a fixed set of large random pairs of
+		// ASTs, each differing by a few edits (see AlignmentConformance)
+		Random random = new Random(SEED);
+		List<ASTNode[]> pairs = new ArrayList<>();
+		while (pairs.size() < N_LARGE_PAIRS) {
+			ASTNode[] pair = AlignmentConformance.randomPair(random, 7, 5);
+			if (pair[0].treeSize() > GreedyTreeAlignment.DEFAULT_SIZE_THRESHOLD) pairs.add(pair);
+		}
+		benchmark("random large", pairs, aligners);
+		compareEdits("random large", pairs, RatingConfig.Snap,
+				new CodeAlignment(1, 2), new GreedyTreeAlignment(1, 2));
+	}
+
+	public static void benchmark(String name, List<ASTNode[]> pairs,
+			Map<String, TreeAligner> aligners) {
+		int totalNodes = 0;
+		for (ASTNode[] pair : pairs) totalNodes += pair[0].treeSize() + pair[1].treeSize();
+		System.out.printf("%s: %d pairs, %.1f nodes per AST\n", name, pairs.size(),
+				totalNodes / 2.0 / Math.max(1, pairs.size()));
+
+		for (String alignerName : aligners.keySet()) {
+			TreeAligner aligner = aligners.get(alignerName);
+			for (int i = 0; i < WARMUP_ROUNDS; i++) alignAll(aligner, pairs);
+			long time = System.nanoTime();
+			long reward = 0;
+			for (int i = 0; i < TIMED_ROUNDS; i++) reward = alignAll(aligner, pairs);
+			double millis = (System.nanoTime() - time) / 1e6 / TIMED_ROUNDS;
+			System.out.printf("\t%-16s %10.1fms per round, %8.3fms per pair, total reward %d\n",
+					alignerName, millis, millis / Math.max(1, pairs.size()), reward);
+		}
+	}
+
+	/**
+	 * Reports the share of the given pairs for which the edits extracted using the approximate
+	 * aligner differ from those extracted using the exact one, along with the time each takes to
+	 * extract them.
+	 */
+	public static void compareEdits(String name, List<ASTNode[]> pairs, RatingConfig config,
+			TreeAligner exact, TreeAligner approximate) {
+		EditExtractor exactExtractor = new EditExtractor(config, exact, ASTNode.EMPTY_TYPE);
+		EditExtractor approximateExtractor =
+				new EditExtractor(config, approximate, ASTNode.EMPTY_TYPE);
+
+		long exactTime = 0, approximateTime = 0;
+		int different = 0, differentEdits = 0, totalEdits = 0;
+		for (ASTNode[] pair : pairs) {
+			long time = System.nanoTime();
+			Bag<Edit> exactEdits = exactExtractor.getEdits(pair[0], pair[1]);
+			exactTime += System.nanoTime() - time;
+			time = System.nanoTime();
+			Bag<Edit> approximateEdits = approximateExtractor.getEdits(pair[0], pair[1]);
+			approximateTime += System.nanoTime() - time;
+
+			totalEdits += exactEdits.size();
+			if (exactEdits.equals(approximateEdits)) continue;
+			different++;
+			Bag<Edit> missing = new EditBag(exactEdits);
+			missing.removeAll(approximateEdits);
+			Bag<Edit> extra = new EditBag(approximateEdits);
+			extra.removeAll(exactEdits);
+			differentEdits += missing.size() + extra.size();
+		}
+		System.out.printf("%s: edits differ for %d/%d pairs (%.1f%%), %d edits differ (%.1f%% of "
+				+ "%d exact edits); exact %.1fms, approximate %.1fms\n", name, different,
+				pairs.size(), 100.0 * different / Math.max(1, pairs.size()), differentEdits,
+				100.0 * differentEdits / Math.max(1, totalEdits), totalEdits, exactTime / 1e6,
+				approximateTime / 1e6);
+	}
+
+	private static List<ASTNode[]> readPairs(String dataset)
+			throws FileNotFoundException, IOException {
+		GoldStandard standard = GoldStandard.parseSpreadsheet(dataset + HintRater.GS_SPREADSHEET);
+		List<ASTNode[]> pairs = new ArrayList<>();
+		for (String assignmentID : standard.getAssignmentIDs()) {
+			for (String requestID : standard.getRequestIDs(assignmentID)) {
+				for (TutorHint hint : standard.getValidHints(assignmentID, requestID)) {
+					pairs.add(new ASTNode[] { hint.from, hint.to });
+				}
+			}
+		}
+		return pairs;
+	}
+
+	private static long alignAll(TreeAligner aligner, List<ASTNode[]> pairs) {
+		long reward = 0;
+		for (ASTNode[] pair : pairs) reward += aligner.align(pair[0], pair[1]).getReward();
+		return reward;
+	}
+}
@@ -15,6 +15,7 @@ import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 
 import edu.isnap.node.ASTNode;
+import edu.isnap.node.SymbolTable;
 import edu.isnap.rating.RatingConfig;
 import edu.isnap.rating.data.TutorHint.Priority;
 import edu.isnap.rating.data.TutorHint.Validity;
@@ -78,7 +79,7 @@ public class GoldStandard {
 				List<TutorHint> hints = hintMap.get(requestID);
 				for (int i = 0; i < hints.size(); i++) {
 					TutorHint hint = hints.get(i);
-					String fromJSON = i == 0 ? hint.from.toJSON().toString() : "";
+					String fromJSON = i == 0 ? hint.from.toJSONString() : "";
 					spreadsheet.newRow();
 					spreadsheet.put("assignmentID", assignmentID);
 					spreadsheet.put("requestID", requestID);
@@ -89,7 +90,7 @@ public class GoldStandard {
 					}
 					spreadsheet.put("priority", hint.priority == null ? "" : hint.priority.value);
 					spreadsheet.put("from", fromJSON);
-					spreadsheet.put("to", hint.to.toJSON().toString());
+					spreadsheet.put("to", hint.to.toJSONString());
 					addColumns.accept(hint, spreadsheet);
 				}
 			}
@@ -102,6 +103,8 @@ public class GoldStandard {
 		ListMap<String, TutorHint> hints = new ListMap<>();
 		CSVParser parser = new CSVParser(new FileReader(path), CSVFormat.DEFAULT.withHeader());
 		ASTNode lastFrom = null;
+		// Intern the strings of all hints, since they are mostly small edits of the same ASTs
+		SymbolTable symbols = new SymbolTable();
 		for (CSVRecord record : parser) {
 			String assignmentID = record.get("assignmentID");
 			String requestID = record.get("requestID");
@@ -113,9 +116,9 @@ public class GoldStandard {
 
 			String fromSource = record.get("from");
 			if (!fromSource.isEmpty()) {
-				lastFrom = ASTNode.parse(fromSource);
+				lastFrom = ASTNode.parse(fromSource, symbols);
 			}
-			ASTNode to = ASTNode.parse(record.get("to"));
+			ASTNode to = ASTNode.parse(record.get("to"), symbols);
 
 			EnumSet<Validity> validity = EnumSet.noneOf(Validity.class);
 			for (Validity v : Validity.values()) {
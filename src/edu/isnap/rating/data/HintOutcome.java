@@ -1,8 +1,10 @@
 package edu.isnap.rating.data;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
@@ -11,6 +13,8 @@ import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.json.JSONObject;
 
 import edu.isnap.node.ASTNode;
+import edu.isnap.node.JSONASTParser;
+import edu.isnap.node.SymbolTable;
 import edu.isnap.rating.RatingConfig;
 
 public class HintOutcome implements Comparable<HintOutcome> {
@@ -61,9 +65,19 @@ public class HintOutcome implements Comparable<HintOutcome> {
 	}
 
 	public static HintOutcome parse(File file, String assignmentID) throws IOException {
-		String contents = new String(Files.readAllBytes(file.toPath()));
-		JSONObject json = new JSONObject(contents);
-		ASTNode root = ASTNode.parse(json);
+		return parse(file, assignmentID, null);
+	}
+
+	public static HintOutcome parse(File file, String assignmentID, SymbolTable symbols)
+			throws IOException {
+		ASTNode root;
+		JSONObject json;
+		try (Reader reader = new InputStreamReader(new FileInputStream(file))) {
+			JSONASTParser parser = new JSONASTParser(reader, symbols);
+			root = parser.parse();
+			// The hint's weight or error is kept with the root's other non-AST fields
+			json = parser.rootProperties();
+		}
 		String name = file.getName().replace(".json", "");
 		String snapshotID;
 		try {
@@ -19,8 +19,30 @@ public class HintRequestDataset extends TraceDataset {
 	}
 
 	public static HintRequestDataset fromSpreadsheet(String name, String path) throws IOException {
+		return fromSpreadsheet(name, path, false);
+	}
+
+	/**
+	 * Loads the dataset from the given spreadsheet. If shareIdenticalSnapshots is true, identical
+	 * snapshots within a trace share one instance, which saves memory only when code was logged
+	 * without changing, but means shared snapshots must be copied before they are modified (see
+	 * {@link Trace#getForModification(int)}).
+	 */
+	public static HintRequestDataset fromSpreadsheet(String name, String path,
+			boolean shareIdenticalSnapshots) throws IOException {
+		HintRequestDataset dataset = new HintRequestDataset(name);
+		dataset.addSpreadsheet(path, shareIdenticalSnapshots);
+		dataset.createRequests();
+		return dataset;
+	}
+
+	/**
+	 * Loads the dataset from a binary file written by
+	 * {@link TraceDataset#writeToBinary(String, boolean)}.
+	 */
+	public static HintRequestDataset fromBinary(String name, String path) throws IOException {
 		HintRequestDataset dataset = new HintRequestDataset(name);
-		dataset.addSpreadsheet(path);
+		dataset.addBinary(path);
 		dataset.createRequests();
 		return dataset;
 	}
@@ -1,8 +1,10 @@
 package edu.isnap.rating.data;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.Collections;
 import java.util.DoubleSummaryStatistics;
 import java.util.HashSet;
@@ -10,9 +12,9 @@ import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-import org.json.JSONObject;
-
 import edu.isnap.node.ASTNode;
+import edu.isnap.node.JSONASTWriter;
+import edu.isnap.node.SymbolTable;
 import edu.isnap.rating.RatingConfig;
 import edu.isnap.rating.data.HintOutcome.HintWithError;
 import edu.isnap.util.map.ListMap;
@@ -80,9 +82,10 @@ public class HintSet {
 				}
 				String filename = String.format("%s_%02d.json", hint.requestID, i);
 				File file = new File(parentDir, filename);
-				JSONObject json = hint.result.toJSON();
-				json.put("weight", hint.weight());
-				Files.write(file.toPath(), json.toString(4).getBytes());
+				try (Writer writer = new OutputStreamWriter(new FileOutputStream(file))) {
+					new JSONASTWriter(writer, 4).write(hint.result,
+							Collections.singletonMap("weight", hint.weight()));
+				}
 			}
 		}
 	}
@@ -94,10 +97,11 @@ public class HintSet {
 		if (!rootFolder.exists()) {
 			throw new IOException("Missing hint directory: " + rootFolder);
 		}
+		SymbolTable symbols = new SymbolTable();
 		for (File assignmentDir : rootFolder.listFiles(file -> file.isDirectory())) {
 			String assignmentID = assignmentDir.getName();
 			for (File file : assignmentDir.listFiles()) {
-				HintOutcome edit = HintOutcome.parse(file, assignmentID);
+				HintOutcome edit = HintOutcome.parse(file, assignmentID, symbols);
 				set.add(edit);
 			}
 		}
@@ -2,6 +2,7 @@ package edu.isnap.rating.data;
 
 import java.util.ArrayList;
 
+import edu.isnap.node.ASTNode;
 import edu.isnap.node.ASTSnapshot;
 
 @SuppressWarnings("serial")
@@ -14,6 +15,26 @@ public class Trace extends ArrayList<ASTSnapshot> implements Comparable<Trace> {
 		return get(size() - 1);
 	}
 
+	/**
+	 * Returns the snapshot at the given index, so that it can be modified. If its instance also
+	 * appears elsewhere in this trace (see {@link TraceDataset#addSpreadsheet(String, boolean)}),
+	 * it is first replaced at this index with a copy, so that modifying it does not change the
+	 * other snapshots.
+	 */
+	public ASTSnapshot getForModification(int index) {
+		ASTSnapshot snapshot = get(index);
+		for (int i = 0; i < size(); i++) {
+			if (i == index || get(i) != snapshot) continue;
+			ASTNode root = snapshot.copy();
+			ASTSnapshot copy = root.toSnapshot(snapshot.isCorrect, snapshot.source);
+			copy.startSourceLocation = root.startSourceLocation;
+			copy.endSourceLocation = root.endSourceLocation;
+			set(index, copy);
+			return copy;
+		}
+		return snapshot;
+	}
+
 	public Trace(String id, String assignmentID) {
 		this.id = id;
 		this.assignmentID = assignmentID;
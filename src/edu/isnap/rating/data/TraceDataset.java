@@ -9,9 +9,15 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -20,10 +26,12 @@ import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import edu.isnap.node.ASTNode;
 import edu.isnap.node.ASTSnapshot;
+import edu.isnap.node.BinaryASTReader;
+import edu.isnap.node.BinaryASTWriter;
+import edu.isnap.node.SymbolTable;
 import edu.isnap.rating.RatingConfig;
 import edu.isnap.util.Spreadsheet;
 import edu.isnap.util.map.ListMap;
@@ -34,6 +42,12 @@ public class TraceDataset {
 
 	public final String name;
 
+	/**
+	 * The table in which the types, values and child relations of all snapshots in this dataset
+	 * are interned, so that each distinct string is only held once.
+	 */
+	public final SymbolTable symbols = new SymbolTable();
+
 	public TraceDataset(String name) {
 		this.name = name;
 	}
@@ -73,12 +87,31 @@ public class TraceDataset {
 	}
 
 	protected void addSpreadsheet(String path) throws IOException {
+		addSpreadsheet(path, false);
+	}
+
+	/**
+	 * Adds the traces in the given spreadsheet to this dataset. If shareIdenticalSnapshots is
+	 * true, snapshots in a trace whose JSON is identical to an earlier snapshot in that trace
+	 * (e.g. when code was logged without changing) are not parsed again, but share the earlier
+	 * snapshot's instance. Since the instance then appears more than once in the trace, snapshots
+	 * in such a dataset must be copied before they are modified, e.g. with
+	 * {@link Trace#getForModification(int)}.
+	 *
+	 * Note: only whole snapshots are shared. Snapshots that differ by a single edit still have
+	 * entirely separate trees, since each ASTNode has a single, mutable parent, so a subtree
+	 * cannot belong to more than one snapshot.
+	 */
+	protected void addSpreadsheet(String path, boolean shareIdenticalSnapshots)
+			throws IOException {
 		String lcPath = path.toLowerCase();
 		boolean zip = lcPath.endsWith(".gz") || lcPath.endsWith(".gzip");
 		InputStream in = new FileInputStream(path);
 		if (zip) in = new GZIPInputStream(in);
 		CSVParser parser = new CSVParser(new InputStreamReader(in), CSVFormat.DEFAULT.withHeader());
 		Trace trace = null;
+		// The snapshots of the current trace, by their JSON, if they are shared
+		Map<String, ASTSnapshot> traceSnapshots = shareIdenticalSnapshots ? new HashMap<>() : null;
 		for (CSVRecord record : parser) {
 			String index = record.get("index");
 			if ("0".equals(index)) {
@@ -86,15 +119,75 @@ public class TraceDataset {
 				String traceID = record.get("traceID");
 				trace = new Trace(traceID, assignmentID);
 				traceMap.add(assignmentID, trace);
+				if (traceSnapshots != null) traceSnapshots.clear();
 			}
 
 			String json = record.get("code");
-			trace.add(ASTSnapshot.parse(json));
+			if (traceSnapshots == null) {
+				trace.add(ASTSnapshot.parse(json, symbols));
+			} else {
+				trace.add(traceSnapshots.computeIfAbsent(json,
+						j -> ASTSnapshot.parse(j, symbols)));
+			}
 		}
 		parser.close();
 		sort();
 	}
 
+	/**
+	 * Adds the traces in the given binary file, written by
+	 * {@link TraceDataset#writeToBinary(String, boolean)}, to this dataset. The file is
+	 * memory-mapped, rather than read through a stream. Snapshots that shared an instance when the
+	 * file was written will share one again, so the same caveats apply as for
+	 * {@link TraceDataset#addSpreadsheet(String, boolean)}.
+	 */
+	protected void addBinary(String path) throws IOException {
+		try (BinaryASTReader reader = new BinaryASTReader(
+				FileChannel.open(Paths.get(path), StandardOpenOption.READ), symbols)) {
+			while (reader.hasRemaining()) {
+				String assignmentID = reader.readString();
+				Trace trace = new Trace(reader.readString(), assignmentID);
+				int nSnapshots = reader.readVarInt();
+				for (int i = 0; i < nSnapshots; i++) {
+					// Either 0, for a new snapshot, or 1 + the index of an earlier one to share
+					int sharedIndex = reader.readVarInt() - 1;
+					trace.add(sharedIndex < 0 ? reader.readSnapshot() : trace.get(sharedIndex));
+				}
+				traceMap.add(assignmentID, trace);
+			}
+		}
+		sort();
+	}
+
+	/**
+	 * Writes this dataset in a compact binary format, which can be read much faster than a
+	 * spreadsheet of JSON ASTs, including the source locations of each node if
+	 * includeSourceLocations is true. See {@link BinaryASTWriter} for details.
+	 */
+	public void writeToBinary(String path, boolean includeSourceLocations) throws IOException {
+		File file = new File(path);
+		if (file.getParentFile() != null) file.getParentFile().mkdirs();
+		try (BinaryASTWriter writer = new BinaryASTWriter(FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING), includeSourceLocations)) {
+			for (String assignmentID : traceMap.keySet()) {
+				for (Trace trace : traceMap.get(assignmentID)) {
+					writer.writeString(trace.assignmentID);
+					writer.writeString(trace.id);
+					writer.writeVarInt(trace.size());
+					// Snapshots that share an instance are only written once
+					Map<ASTSnapshot, Integer> written = new IdentityHashMap<>();
+					for (int i = 0; i < trace.size(); i++) {
+						ASTSnapshot snapshot = trace.get(i);
+						Integer sharedIndex = written.putIfAbsent(snapshot, i);
+						writer.writeVarInt(sharedIndex == null ? 0 : sharedIndex + 1);
+						if (sharedIndex == null) writer.writeSnapshot(snapshot);
+					}
+				}
+			}
+		}
+	}
+
 	public void writeToFolder(String rootDir) throws FileNotFoundException, JSONException {
 		if (!rootDir.endsWith(File.separator)) rootDir += File.separator;
 		for (String assignmentID : traceMap.keySet()) {
@@ -103,7 +196,6 @@ public class TraceDataset {
 				int order = 0;
 				if (shortID.length() > 8) shortID = shortID.substring(0, 8);
 				for (ASTNode snapshot : trace) {
-					JSONObject json = snapshot.toJSON();
 					write(
 						String.format("%s%s/%s/%05d-%s.json",
 							rootDir,
@@ -111,17 +203,23 @@ public class TraceDataset {
 							trace.id,
 							order++,
 							shortID),
-						json.toString(2));
+						snapshot);
 				}
 			}
 		}
 	}
 
-	private static void write(String path, String text) throws FileNotFoundException {
+	private static void write(String path, ASTNode node) throws FileNotFoundException {
 		File file = new File(path);
 		file.getParentFile().mkdirs();
 		PrintWriter writer = new PrintWriter(file);
-		writer.println(text);
+		try {
+			node.writeJSON(writer, 2);
+		} catch (IOException e) {
+			// PrintWriters do not throw IOExceptions
+			throw new RuntimeException(e);
+		}
+		writer.println();
 		writer.close();
 	}
 
@@ -151,7 +249,7 @@ public class TraceDataset {
 
 					spreadsheet.put("isCorrect", isCorrect);
 					spreadsheet.put("source", source);
-					spreadsheet.put("code", node.toJSON().toString());
+					spreadsheet.put("code", node.toJSONString());
 				}
 			}
 		}
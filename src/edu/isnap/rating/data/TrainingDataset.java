@@ -13,8 +13,29 @@ public class TrainingDataset extends TraceDataset {
 	}
 
 	public static TrainingDataset fromSpreadsheet(String name, String path) throws IOException {
+		return fromSpreadsheet(name, path, false);
+	}
+
+	/**
+	 * Loads the dataset from the given spreadsheet. If shareIdenticalSnapshots is true, identical
+	 * snapshots within a trace share one instance, which saves memory only when code was logged
+	 * without changing, but means shared snapshots must be copied before they are modified (see
+	 * {@link Trace#getForModification(int)}).
+	 */
+	public static TrainingDataset fromSpreadsheet(String name, String path,
+			boolean shareIdenticalSnapshots) throws IOException {
+		TrainingDataset dataset = new TrainingDataset(name);
+		dataset.addSpreadsheet(path, shareIdenticalSnapshots);
+		return dataset;
+	}
+
+	/**
+	 * Loads the dataset from a binary file written by
+	 * {@link TraceDataset#writeToBinary(String, boolean)}.
+	 */
+	public static TrainingDataset fromBinary(String name, String path) throws IOException {
 		TrainingDataset dataset = new TrainingDataset(name);
-		dataset.addSpreadsheet(path);
+		dataset.addBinary(path);
 		return dataset;
 	}
 
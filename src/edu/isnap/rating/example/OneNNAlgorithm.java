@@ -7,8 +7,8 @@ import java.util.List;
 
 import edu.isnap.node.ASTNode;
 import edu.isnap.node.ASTSnapshot;
-import edu.isnap.node.CodeAlignment;
 import edu.isnap.node.CodeAlignment.NodePairs;
+import edu.isnap.node.TreeAligner;
 import edu.isnap.rating.HintRater;
 import edu.isnap.rating.RatingConfig;
 import edu.isnap.rating.data.HintGenerator;
@@ -26,32 +26,44 @@ public class OneNNAlgorithm extends HintGenerator {
 		return "OneNN";
 	}
 
-	private final static CodeAlignment Align = new CodeAlignment(1, 2);
+	private final TreeAligner aligner;
+
+	public OneNNAlgorithm() {
+		this(RatingConfig.Default);
+	}
+
+	public OneNNAlgorithm(RatingConfig config) {
+		aligner = config.getTreeAligner();
+	}
 
 	// This method actually generates the hints
 	@Override
 	protected List<HintOutcome> generateHints(List<Trace> trainingData, HintRequest request) {
 
 		// Look for the closest node in the training dataset (correct or not)
-		double highestSimilarity = Double.MIN_VALUE;
+		// Only neighbors with a positive similarity are considered
+		int highestSimilarity = 0;
 		// Make sure not to modify the original request's code
 		ASTNode requestCode = request.code.copy();
 		ASTNode nearestNeighbor = requestCode;
+		NodePairs nearestPairs = null;
 		for (Trace trace : trainingData) {
 			// Don't count traces that didn't get to a correct solution
 			if (!trace.getFinalSnapshot().isCorrect) continue;
 			for (ASTSnapshot snapshot : trace) {
-				// Use a simple similarity metric
-				int similarity = Align.align(nearestNeighbor, requestCode).getReward();
-				if (similarity > highestSimilarity) {
-					highestSimilarity = similarity;
+				// Use a simple similarity metric, skipping the alignment of any snapshot that
+				// cannot be more similar than the current nearest neighbor
+				NodePairs pairs = aligner.alignWithBound(requestCode, snapshot, highestSimilarity);
+				if (pairs != null) {
+					highestSimilarity = pairs.getReward();
 					nearestNeighbor = snapshot;
+					nearestPairs = pairs;
 				}
 			}
 		}
 		// Use this nearest neighbor to extract a top-leve edit
-		makeTopLevelEdit(Align.align(requestCode, nearestNeighbor),
-				nearestNeighbor);
+		if (nearestPairs == null) nearestPairs = aligner.align(requestCode, nearestNeighbor);
+		makeTopLevelEdit(nearestPairs, nearestNeighbor);
 		// Return this as a single hint, with a weight of 1. You can return multiple hints and
 		// weight them to reflect the confidence that it's a good hint.
 		double weight = 1;
@@ -90,7 +102,7 @@ public class OneNNAlgorithm extends HintGenerator {
 		String dataset = HintRater.itapS16Dir();
 		// Since we're using ITAP, make sure to use the Python rating config.
 		RatingConfig config = RatingConfig.Python;
-		HintGenerator generator = new OneNNAlgorithm();
+		HintGenerator generator = new OneNNAlgorithm(config);
 
 		// Train and test the algorithm to create a set of hints
 		HintSet hintSet = HintRater.createHintSet(generator, dataset, config);